@@ -0,0 +1,219 @@
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+// Throughput and allocation benchmarks for Filters, ImagePanel.copyImage and the apply plus
+// undo snapshot cycle. Every benchmark runs on each size and source type; results are
+// printed as a table and optionally written to CSV so runs from different commits can be
+// diffed.
+//
+//   java -Xmx6g -cp out/production/FilersApp:out/production/bench FilterBenchmark \
+//       [--sizes 1,12,48] [--types INT_RGB,3BYTE_BGR,INT_ARGB] [--filters Grayscale,Mirror]
+//       [--warmup 3] [--iterations 5] [--csv results.csv]
+public class FilterBenchmark {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    interface Operation {
+        void run(BufferedImage image);
+    }
+
+    private static class Result {
+        final String benchmark;
+        final String type;
+        final int megapixels;
+        final double opsPerSecond;
+        final double megapixelsPerSecond;
+        final double bytesPerOp;
+
+        Result(String benchmark, String type, int megapixels, double opsPerSecond, double megapixelsPerSecond, double bytesPerOp) {
+            this.benchmark = benchmark;
+            this.type = type;
+            this.megapixels = megapixels;
+            this.opsPerSecond = opsPerSecond;
+            this.megapixelsPerSecond = megapixelsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    private int[] sizes = {1, 12, 48};
+    private String[] types = {"INT_RGB", "3BYTE_BGR", "INT_ARGB"};
+    private String[] filters = FilterRegistry.getNames().toArray(new String[0]);
+    private int warmup = 3;
+    private int iterations = 5;
+    private Path csv;
+
+    public static void main(String[] args) throws IOException {
+        FilterBenchmark benchmark = new FilterBenchmark();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--sizes":
+                    benchmark.sizes = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--types":
+                    benchmark.types = value.split(",");
+                    break;
+                case "--filters":
+                    benchmark.filters = value.split(",");
+                    break;
+                case "--warmup":
+                    benchmark.warmup = Integer.parseInt(value);
+                    break;
+                case "--iterations":
+                    benchmark.iterations = Integer.parseInt(value);
+                    break;
+                case "--csv":
+                    benchmark.csv = Path.of(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        benchmark.run();
+    }
+
+    private void run() throws IOException {
+        List<Result> results = new ArrayList<>();
+        System.out.printf(Locale.ROOT, "%-28s %-10s %5s %12s %10s %16s%n",
+                "Benchmark", "Type", "MP", "ops/s", "MP/s", "alloc B/op");
+        for (int megapixels : sizes) {
+            for (String type : types) {
+                BufferedImage source = createSource(megapixels, type);
+                for (String filter : filters) {
+                    results.add(measure("filter:" + filter, type, megapixels, source,
+                            image -> Filters.applyFilter(image, filter)));
+                }
+                results.add(measure("copyImage", type, megapixels, source, ImagePanel::copyImage));
+                EditHistory history = new EditHistory(Long.MAX_VALUE);
+                history.reset(source);
+                results.add(measure("apply+undoSnapshot", type, megapixels, source, image -> {
+                    Rectangle all = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+                    FilterChain chain = FilterChain.of("Negative");
+                    history.record(image, all, chain);
+                    chain.apply(image);
+                    history.committed(image);
+                    history.undo(image);
+                }));
+            }
+        }
+        if (csv != null) {
+            writeCsv(results);
+        }
+    }
+
+    // Every run starts from the pixels of source again, restored outside the timed part, so
+    // filters never work on their own output (Black-White of Black-White is all but free).
+    private Result measure(String benchmark, String type, int megapixels, BufferedImage source, Operation operation) {
+        BufferedImage image = copyOf(source);
+        for (int i = 0; i < warmup; i++) {
+            restore(source, image);
+            operation.run(image);
+        }
+
+        long allocatedBefore = allocatedBytes();
+        long elapsed = 0;
+        for (int i = 0; i < iterations; i++) {
+            restore(source, image);
+            long start = System.nanoTime();
+            operation.run(image);
+            elapsed += System.nanoTime() - start;
+        }
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        double seconds = elapsed / 1e9;
+        double pixels = (double) image.getWidth() * image.getHeight();
+        Result result = new Result(benchmark, type, megapixels, iterations / seconds,
+                iterations * pixels / 1e6 / seconds, (double) allocated / iterations);
+        System.out.printf(Locale.ROOT, "%-28s %-10s %5d %12.3f %10.1f %16.0f%n", result.benchmark, result.type,
+                result.megapixels, result.opsPerSecond, result.megapixelsPerSecond, result.bytesPerOp);
+        return result;
+    }
+
+    // Sum over all live threads, so work done on the Filters pool is counted too.
+    private static long allocatedBytes() {
+        long[] ids = THREADS.getAllThreadIds();
+        long total = 0;
+        for (long allocated : THREADS.getThreadAllocatedBytes(ids)) {
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    private void writeCsv(List<Result> results) throws IOException {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(csv))) {
+            out.println("benchmark,type,megapixels,ops_per_s,mp_per_s,alloc_bytes_per_op");
+            for (Result r : results) {
+                out.printf(Locale.ROOT, "%s,%s,%d,%.4f,%.2f,%.0f%n", r.benchmark, r.type, r.megapixels,
+                        r.opsPerSecond, r.megapixelsPerSecond, r.bytesPerOp);
+            }
+        }
+    }
+
+    private static BufferedImage copyOf(BufferedImage source) {
+        return new BufferedImage(source.getColorModel(), source.copyData(null), source.isAlphaPremultiplied(), null);
+    }
+
+    // image is a copyOf source, so its data buffer has the same layout; copying the array
+    // allocates nothing, which keeps the allocation figures to the operation itself.
+    private static void restore(BufferedImage source, BufferedImage image) {
+        DataBuffer from = source.getRaster().getDataBuffer();
+        DataBuffer to = image.getRaster().getDataBuffer();
+        if (from instanceof DataBufferInt && to instanceof DataBufferInt) {
+            int[] data = ((DataBufferInt) from).getData();
+            System.arraycopy(data, 0, ((DataBufferInt) to).getData(), 0, data.length);
+        } else if (from instanceof DataBufferByte && to instanceof DataBufferByte) {
+            byte[] data = ((DataBufferByte) from).getData();
+            System.arraycopy(data, 0, ((DataBufferByte) to).getData(), 0, data.length);
+        } else {
+            image.setData(source.getRaster());
+        }
+    }
+
+    // 4:3 photo-like content: smooth gradients with noise, so JPEG and the edge filter do real work.
+    static BufferedImage createSource(int megapixels, String type) throws IOException {
+        int height = (int) Math.sqrt(megapixels * 1_000_000 * 3 / 4.0);
+        int width = megapixels * 1_000_000 / height;
+        BufferedImage image = new BufferedImage(width, height,
+                type.equals("INT_ARGB") ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(16)) & 0xFF;
+                int g = (y * 255 / height + random.nextInt(16)) & 0xFF;
+                int b = ((x + y) * 255 / (width + height) + random.nextInt(16)) & 0xFF;
+                row[x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        if (!type.equals("3BYTE_BGR")) {
+            return image;
+        }
+
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", jpeg);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg.toByteArray()));
+        if (decoded.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+            throw new IllegalStateException("JPEG decoded as type " + decoded.getType());
+        }
+        return decoded;
+    }
+}
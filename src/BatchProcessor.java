@@ -0,0 +1,291 @@
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Headless decode -> filter -> encode pipeline. Each stage has its own workers and the stages
+// are joined by bounded queues, so a slow encoder holds back decoding instead of letting
+// decoded images pile up in memory. An image that fails in any stage is counted and skipped;
+// a worker that dies (an Error) stops the whole pipeline rather than leaving the others
+// blocked on its queue.
+public class BatchProcessor {
+    private static final Item END = new Item(null, null);
+
+    private static class Item {
+        final Path source;
+        final BufferedImage image;
+
+        Item(Path source, BufferedImage image) {
+            this.source = source;
+            this.image = image;
+        }
+    }
+
+    private final FilterChain chain;
+    private final Path outputDir;
+    private final String format;
+    private final int decodeThreads;
+    private final int filterThreads;
+    private final int encodeThreads;
+    private final int queueCapacity;
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong pixels = new AtomicLong();
+    private final List<ExecutorService> stages = new ArrayList<>();
+    // Output file of each input, decided before the workers start; see targets.
+    private final Map<Path, Path> targets = new HashMap<>();
+    private volatile boolean aborted;
+
+    public BatchProcessor(FilterChain chain, Path outputDir, String format) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        this.chain = chain;
+        this.outputDir = outputDir;
+        this.format = format;
+        this.decodeThreads = Math.max(1, cores / 2);
+        // Filters already spreads a single image over all cores; a second worker keeps the
+        // pool busy while the first one waits on its queues.
+        this.filterThreads = Math.min(2, cores);
+        this.encodeThreads = Math.max(1, cores / 2);
+        this.queueCapacity = Math.max(2, cores);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: --batch <input dir or glob> <filter chain> <output dir> [format]");
+            System.err.println("  e.g. --batch \"photos/*.jpg\" \"Grayscale,Posterize\" out png");
+            System.exit(2);
+        }
+        FilterChain chain = parseChainArgument(args[1]);
+        List<Path> inputs = listInputs(args[0]);
+        Path outputDir = Path.of(args[2]);
+        Files.createDirectories(outputDir);
+        String format = args.length > 3 ? args[3] : "jpg";
+        new BatchProcessor(chain, outputDir, format).run(inputs);
+    }
+
+    // A chain given on the command line. FilterChain.parse keeps unknown filter names and the
+    // chain skips them, so they are rejected here; like a bad parameter they end the program
+    // with status 2, as FilterServer answers them with 400.
+    static FilterChain parseChainArgument(String spec) {
+        try {
+            FilterChain chain = FilterChain.parse(spec);
+            for (String name : chain.getFilters()) {
+                if (FilterRegistry.get(name) == null) {
+                    throw new IllegalArgumentException("Unknown filter: " + name);
+                }
+            }
+            return chain;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return null;
+        }
+    }
+
+    // Each input is written as its name with the format's extension instead of its own, e.g.
+    // a.jpg as out/a.png. Inputs that would share a name (a.jpg and a.png) keep their own
+    // extension in front, a.jpg.png and a.png.png, so no encoder overwrites another's file.
+    // Names are compared ignoring case, for file systems that do.
+    private Map<Path, Path> targets(List<Path> inputs) {
+        Map<String, Integer> stems = new HashMap<>();
+        for (Path input : inputs) {
+            stems.merge(stem(input).toLowerCase(Locale.ROOT), 1, Integer::sum);
+        }
+        Map<Path, Path> targets = new HashMap<>();
+        for (Path input : inputs) {
+            String stem = stem(input);
+            String name = stems.get(stem.toLowerCase(Locale.ROOT)) > 1 ? input.getFileName().toString() : stem;
+            targets.put(input, outputDir.resolve(name + "." + format));
+        }
+        return targets;
+    }
+
+    private static String stem(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    // A directory selects every readable image in it, anything else is treated as a glob
+    // relative to its parent directory.
+    static List<Path> listInputs(String spec) throws IOException {
+        Path path = Path.of(spec);
+        Path dir = Files.isDirectory(path) ? path : path.toAbsolutePath().getParent();
+        PathMatcher matcher = Files.isDirectory(path) ? null
+                : FileSystems.getDefault().getPathMatcher("glob:" + path.getFileName());
+        List<String> suffixes = List.of(ImageIO.getReaderFileSuffixes());
+        List<Path> inputs = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(Files::isRegularFile)
+                    .filter(f -> matcher == null ? suffixes.contains(extension(f)) : matcher.matches(f.getFileName()))
+                    .sorted()
+                    .forEach(inputs::add);
+        }
+        return inputs;
+    }
+
+    private static String extension(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    public void run(List<Path> inputs) throws InterruptedException, ExecutionException {
+        targets.putAll(targets(inputs));
+        BlockingQueue<Path> pending = new LinkedBlockingQueue<>(inputs);
+        BlockingQueue<Item> decoded = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Item> filtered = new ArrayBlockingQueue<>(queueCapacity);
+
+        ExecutorService decoders = Executors.newFixedThreadPool(decodeThreads);
+        ExecutorService filterers = Executors.newFixedThreadPool(filterThreads);
+        ExecutorService encoders = Executors.newFixedThreadPool(encodeThreads);
+        synchronized (stages) {
+            stages.addAll(List.of(decoders, filterers, encoders));
+        }
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> decodeTasks = new ArrayList<>();
+            List<Future<?>> filterTasks = new ArrayList<>();
+            List<Future<?>> encodeTasks = new ArrayList<>();
+            for (int i = 0; i < decodeThreads; i++) {
+                decodeTasks.add(decoders.submit(() -> stage(() -> decodeLoop(pending, decoded))));
+            }
+            for (int i = 0; i < filterThreads; i++) {
+                filterTasks.add(filterers.submit(() -> stage(() -> filterLoop(decoded, filtered))));
+            }
+            for (int i = 0; i < encodeThreads; i++) {
+                encodeTasks.add(encoders.submit(() -> stage(() -> encodeLoop(filtered))));
+            }
+
+            // Each stage is shut down with one END marker per downstream worker once the stage
+            // before it has drained.
+            finish(decodeTasks, decoded, filterThreads);
+            finish(filterTasks, filtered, encodeThreads);
+            finish(encodeTasks, null, 0);
+        } finally {
+            decoders.shutdownNow();
+            filterers.shutdownNow();
+            encoders.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf(Locale.ROOT, "%d images (%d failed) in %.2f s: %.2f images/s, %.2f MP/s%n",
+                processed.get(), failed.get(), seconds,
+                processed.get() / seconds, pixels.get() / 1e6 / seconds);
+    }
+
+    // Runs a worker loop; if it dies, every stage is interrupted so none waits on it forever.
+    private void stage(Runnable loop) {
+        try {
+            loop.run();
+        } catch (Throwable e) {
+            aborted = true;
+            synchronized (stages) {
+                stages.forEach(ExecutorService::shutdownNow);
+            }
+            throw e;
+        }
+    }
+
+    private void finish(List<Future<?>> tasks, BlockingQueue<Item> next, int consumers)
+            throws InterruptedException, ExecutionException {
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } finally {
+            // After an abort the consumers are gone, so a full queue would never take END.
+            for (int i = 0; i < consumers && !aborted; i++) {
+                next.put(END);
+            }
+        }
+    }
+
+    private void decodeLoop(BlockingQueue<Path> pending, BlockingQueue<Item> decoded) {
+        try {
+            Path source;
+            while ((source = pending.poll()) != null) {
+                try {
+                    BufferedImage image = ImageIO.read(source.toFile());
+                    if (image == null) {
+                        throw new IOException("No reader for " + source);
+                    }
+                    decoded.put(new Item(source, toIntRgb(image)));
+                } catch (IOException | RuntimeException e) {
+                    failed.incrementAndGet();
+                    System.err.println("Failed to read " + source + ": " + e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void filterLoop(BlockingQueue<Item> decoded, BlockingQueue<Item> filtered) {
+        try {
+            Item item;
+            while ((item = decoded.take()) != END) {
+                try {
+                    chain.apply(item.image);
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    System.err.println("Failed to filter " + item.source + ": " + e);
+                    continue;
+                }
+                filtered.put(item);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void encodeLoop(BlockingQueue<Item> filtered) {
+        try {
+            Item item;
+            while ((item = filtered.take()) != END) {
+                Path target = targets.get(item.source);
+                try {
+                    ImageSaver.write(item.image, target, format, -1, null);
+                    processed.incrementAndGet();
+                    pixels.addAndGet((long) item.image.getWidth() * item.image.getHeight());
+                } catch (IOException | RuntimeException e) {
+                    failed.incrementAndGet();
+                    System.err.println("Failed to write " + target + ": " + e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static BufferedImage toIntRgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics g = converted.getGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+}
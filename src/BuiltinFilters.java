@@ -0,0 +1,536 @@
+import java.awt.*;
+import java.util.List;
+
+// The filters the app ships with, registered in META-INF/services/PixelFilter. The pixel
+// kernels themselves live in Filters, and those of the neighbourhood filters in Convolution.
+public class BuiltinFilters {
+    private static int[] table(java.util.function.IntUnaryOperator f) {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = f.applyAsInt(v);
+        }
+        return table;
+    }
+
+    private abstract static class Pointwise implements PixelFilter {
+        @Override
+        public Kind getKind() {
+            return Kind.POINTWISE;
+        }
+
+        @Override
+        public boolean isInPlaceSafe() {
+            return true;
+        }
+
+        @Override
+        public boolean preservesAlpha() {
+            return false;
+        }
+    }
+
+    public static class BlackWhite extends Pointwise {
+        @Override
+        public String getName() {
+            return "Black-White";
+        }
+
+        @Override
+        public boolean fuse(PointOp op, FilterSettings settings) {
+            int[] bw = table(v -> v > 127 ? 255 : 0);
+            op.average();
+            op.lut(bw, bw, bw);
+            op.setAlpha(Color.WHITE.getRGB() & 0xFF000000);
+            return true;
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            Filters.blackWhite(dst, y0, y1);
+        }
+    }
+
+    public static class Grayscale extends Pointwise {
+        @Override
+        public String getName() {
+            return "Grayscale";
+        }
+
+        @Override
+        public boolean fuse(PointOp op, FilterSettings settings) {
+            op.average();
+            op.setAlpha(0);
+            return true;
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            Filters.grayscale(dst, y0, y1);
+        }
+    }
+
+    public static class Posterize extends Pointwise {
+        @Override
+        public String getName() {
+            return "Posterize";
+        }
+
+        @Override
+        public List<FilterParameter> getParameters() {
+            return List.of(new FilterParameter("levels", FilterParameter.Type.INTEGER, 2, 256, 4));
+        }
+
+        @Override
+        public boolean fuse(PointOp op, FilterSettings settings) {
+            int step = 256 / settings.getInt("levels");
+            int[] steps = table(v -> (v / step) * step);
+            op.lut(steps, steps, steps);
+            op.setAlpha(0);
+            return true;
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            Filters.posterize(dst, y0, y1, settings.getInt("levels"));
+        }
+    }
+
+    public static class Tint extends Pointwise {
+        @Override
+        public String getName() {
+            return "Tint";
+        }
+
+        @Override
+        public List<FilterParameter> getParameters() {
+            return List.of(FilterParameter.color("color", Color.CYAN.getRGB()));
+        }
+
+        @Override
+        public boolean fuse(PointOp op, FilterSettings settings) {
+            int tintRgb = settings.getInt("color");
+            int tr = (tintRgb >> 16) & 0xFF;
+            int tg = (tintRgb >> 8) & 0xFF;
+            int tb = tintRgb & 0xFF;
+            op.lut(table(v -> Math.min((v + tr) / 2, 255)),
+                    table(v -> Math.min((v + tg) / 2, 255)),
+                    table(v -> Math.min((v + tb) / 2, 255)));
+            op.setAlpha(0);
+            return true;
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            Filters.tint(dst, y0, y1, settings.getColor("color"));
+        }
+    }
+
+    public static class ColorShiftRight extends Pointwise {
+        @Override
+        public String getName() {
+            return "Color Shift Right";
+        }
+
+        @Override
+        public boolean fuse(PointOp op, FilterSettings settings) {
+            op.permute(2, 0, 1);
+            op.setAlpha(0);
+            return true;
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            Filters.colorShiftRight(dst, y0, y1);
+        }
+    }
+
+    public static class EliminateRed extends Pointwise {
+        @Override
+        public String getName() {
+            return "Eliminate Red";
+        }
+
+        @Override
+        public boolean fuse(PointOp op, FilterSettings settings) {
+            op.lut(new int[256], table(v -> v), table(v -> v));
+            op.setAlpha(0);
+            return true;
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            Filters.eliminateColor(dst, y0, y1, 'R');
+        }
+    }
+
+    public static class Negative extends Pointwise {
+        @Override
+        public String getName() {
+            return "Negative";
+        }
+
+        @Override
+        public boolean fuse(PointOp op, FilterSettings settings) {
+            int[] inverted = table(v -> 255 - v);
+            op.lut(inverted, inverted, inverted);
+            op.setAlpha(0);
+            return true;
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            Filters.negative(dst, y0, y1);
+        }
+    }
+
+    // Filters whose lookup tables come from the histogram of what they filter. Filters runs
+    // them as a counting pass and a mapping pass over row bands; called directly, apply
+    // counts and maps the rows it is given, which are the whole buffer.
+    private abstract static class Statistical implements StatisticalFilter {
+        @Override
+        public boolean isInPlaceSafe() {
+            return true;
+        }
+
+        @Override
+        public boolean preservesAlpha() {
+            return false;
+        }
+
+        @Override
+        public int getBandAlignment(FilterSettings settings) {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            PointOp op = new PointOp();
+            fuse(op, settings, Histogram.count(src, y0, y1));
+            op.apply(dst, y0, y1);
+        }
+    }
+
+    // Stretches each channel so that, ignoring the clip percent darkest and brightest pixels,
+    // it spans the full range. Channels are stretched separately, which also removes a cast.
+    public static class AutoLevels extends Statistical {
+        @Override
+        public String getName() {
+            return "Auto Levels";
+        }
+
+        @Override
+        public List<FilterParameter> getParameters() {
+            return List.of(new FilterParameter("clip", FilterParameter.Type.INTEGER, 0, 10, 1));
+        }
+
+        @Override
+        public void fuse(PointOp op, FilterSettings settings, Histogram histogram) {
+            double clip = settings.get("clip") / 100;
+            int[][] tables = new int[3][];
+            for (int c = 0; c < 3; c++) {
+                int low = histogram.percentile(c, clip);
+                int high = Math.max(low, histogram.percentile(c, 1 - clip));
+                tables[c] = high == low ? table(v -> v)
+                        : table(v -> Math.max(0, Math.min(255, (v - low) * 255 / (high - low))));
+            }
+            op.lut(tables[0], tables[1], tables[2]);
+            op.setAlpha(0);
+        }
+    }
+
+    // Spreads the luminance values evenly over the range. Every channel goes through the
+    // luminance table, so colours brighten or darken together instead of shifting hue.
+    public static class EqualizeHistogram extends Statistical {
+        @Override
+        public String getName() {
+            return "Equalize Histogram";
+        }
+
+        @Override
+        public void fuse(PointOp op, FilterSettings settings, Histogram histogram) {
+            int[] equalized = histogram.equalization(Histogram.LUMINANCE);
+            op.lut(equalized, equalized, equalized);
+            op.setAlpha(0);
+        }
+    }
+
+    // Black-White with the threshold chosen by Otsu's method rather than fixed at 127, so
+    // dark and bright photos still split into two even-looking halves.
+    public static class OtsuBlackWhite extends Statistical {
+        @Override
+        public String getName() {
+            return "Otsu Black-White";
+        }
+
+        @Override
+        public void fuse(PointOp op, FilterSettings settings, Histogram histogram) {
+            int threshold = histogram.otsuThreshold(Histogram.LUMINANCE);
+            int[] bw = table(v -> v > threshold ? 255 : 0);
+            op.average();
+            op.lut(bw, bw, bw);
+            op.setAlpha(Color.WHITE.getRGB() & 0xFF000000);
+        }
+    }
+
+    // Rows are mirrored independently, so any banding works.
+    public static class Mirror implements PixelFilter {
+        @Override
+        public String getName() {
+            return "Mirror";
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.GEOMETRIC;
+        }
+
+        @Override
+        public boolean isInPlaceSafe() {
+            return true;
+        }
+
+        @Override
+        public boolean preservesAlpha() {
+            return true;
+        }
+
+        @Override
+        public Rectangle getSourceRect(Rectangle target, int width, int height, FilterSettings settings) {
+            return new Rectangle(width - target.x - target.width, target.y, target.width, target.height);
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            Filters.mirror(dst, y0, y1);
+        }
+    }
+
+    // Each block only reads its own pixels, so it is in-place safe as long as bands start on
+    // block boundaries.
+    public static class Pixelate implements PixelFilter {
+        @Override
+        public String getName() {
+            return "Pixelate";
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.NEIGHBORHOOD;
+        }
+
+        @Override
+        public int getRadius(FilterSettings settings) {
+            return (int) Math.ceil(blockSize(settings));
+        }
+
+        @Override
+        public boolean isInPlaceSafe() {
+            return true;
+        }
+
+        @Override
+        public boolean preservesAlpha() {
+            return false;
+        }
+
+        @Override
+        public List<FilterParameter> getParameters() {
+            return List.of(new FilterParameter("size", FilterParameter.Type.INTEGER, 1, 200, 10));
+        }
+
+        // Fractional block sizes (reduced previews) cannot be aligned to bands.
+        @Override
+        public int getBandAlignment(FilterSettings settings) {
+            double size = blockSize(settings);
+            return size == Math.rint(size) ? (int) size : Integer.MAX_VALUE;
+        }
+
+        private static double blockSize(FilterSettings settings) {
+            return Math.max(1.0, settings.getInt("size") * settings.getScale());
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            Convolution.pixelate(dst, y0, y1, blockSize(settings));
+        }
+    }
+
+    // Neighbouring preview pixels are 1/scale full pixels apart, so the threshold is divided
+    // by the scale to classify gradients the same way at every preview size.
+    public static class ShowBorders implements PixelFilter {
+        @Override
+        public String getName() {
+            return "Show Borders";
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.NEIGHBORHOOD;
+        }
+
+        @Override
+        public int getRadius(FilterSettings settings) {
+            return 1;
+        }
+
+        @Override
+        public boolean isInPlaceSafe() {
+            return false;
+        }
+
+        @Override
+        public boolean preservesAlpha() {
+            return false;
+        }
+
+        @Override
+        public List<FilterParameter> getParameters() {
+            return List.of(new FilterParameter("threshold", FilterParameter.Type.NUMBER, 0, 765, 10));
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            Filters.showBorders(src, dst, y0, y1, settings.get("threshold") / settings.getScale());
+        }
+    }
+
+    // Filters built on Convolution. They read around every pixel and write a separate buffer;
+    // how pixels beyond the edge are made up is the 'edges' parameter (see Convolution.Edge).
+    private abstract static class Convolved implements PixelFilter {
+        @Override
+        public Kind getKind() {
+            return Kind.NEIGHBORHOOD;
+        }
+
+        @Override
+        public boolean isInPlaceSafe() {
+            return false;
+        }
+
+        @Override
+        public boolean preservesAlpha() {
+            return false;
+        }
+
+        @Override
+        public List<FilterParameter> getParameters() {
+            return List.of(Convolution.Edge.parameter());
+        }
+    }
+
+    // Blur radii are in pixels of the full-resolution image, so previews scale them down.
+    private static int scaledRadius(FilterSettings settings) {
+        return (int) Math.round(settings.getInt("radius") * settings.getScale());
+    }
+
+    // The plain mean of the square around each pixel, from summed-area tables: large radii
+    // cost no more than small ones.
+    public static class BoxBlur extends Convolved {
+        @Override
+        public String getName() {
+            return "Box Blur";
+        }
+
+        @Override
+        public int getRadius(FilterSettings settings) {
+            return scaledRadius(settings);
+        }
+
+        @Override
+        public List<FilterParameter> getParameters() {
+            return List.of(new FilterParameter("radius", FilterParameter.Type.INTEGER, 1, 100, 3),
+                    Convolution.Edge.parameter());
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            Convolution.boxBlur(src, dst, y0, y1, scaledRadius(settings), Convolution.Edge.of(settings));
+        }
+    }
+
+    // A separable Gaussian reaching radius pixels, i.e. three standard deviations, either side.
+    public static class GaussianBlur extends Convolved {
+        @Override
+        public String getName() {
+            return "Gaussian Blur";
+        }
+
+        @Override
+        public int getRadius(FilterSettings settings) {
+            return scaledRadius(settings);
+        }
+
+        @Override
+        public List<FilterParameter> getParameters() {
+            return List.of(new FilterParameter("radius", FilterParameter.Type.INTEGER, 1, 100, 5),
+                    Convolution.Edge.parameter());
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            Convolution.convolve(src, dst, y0, y1, Convolution.Edge.of(settings), true,
+                    Convolution.Kernel.gaussian(scaledRadius(settings)));
+        }
+    }
+
+    // Adds amount percent of the difference between each pixel and its four neighbours. The
+    // kernel is not separable, so it takes the engine's direct path.
+    public static class Sharpen extends Convolved {
+        @Override
+        public String getName() {
+            return "Sharpen";
+        }
+
+        @Override
+        public int getRadius(FilterSettings settings) {
+            return 1;
+        }
+
+        @Override
+        public boolean preservesAlpha() {
+            return true;
+        }
+
+        @Override
+        public List<FilterParameter> getParameters() {
+            return List.of(new FilterParameter("amount", FilterParameter.Type.INTEGER, 0, 500, 100),
+                    Convolution.Edge.parameter());
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            float a = settings.getInt("amount") / 100f;
+            Convolution.convolve(src, dst, y0, y1, Convolution.Edge.of(settings), false,
+                    Convolution.Kernel.of(3, 0, -a, 0, -a, 1 + 4 * a, -a, 0, -a, 0));
+        }
+    }
+
+    // The gradient magnitude of each channel from the two 3x3 Sobel derivatives, each the
+    // outer product of a smoothing and a differencing vector.
+    public static class Sobel extends Convolved {
+        private static final Convolution.Kernel X = Convolution.Kernel.separable(
+                new float[]{-1, 0, 1}, new float[]{1, 2, 1});
+        private static final Convolution.Kernel Y = Convolution.Kernel.separable(
+                new float[]{1, 2, 1}, new float[]{-1, 0, 1});
+
+        @Override
+        public String getName() {
+            return "Sobel";
+        }
+
+        @Override
+        public int getRadius(FilterSettings settings) {
+            return 1;
+        }
+
+        @Override
+        public boolean preservesAlpha() {
+            return true;
+        }
+
+        @Override
+        public void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings) {
+            Convolution.convolve(src, dst, y0, y1, Convolution.Edge.of(settings), false, X, Y);
+        }
+    }
+}
@@ -1,5 +1,9 @@
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class ControlPanel extends JPanel {
     public JComboBox<String> filterBox;
@@ -9,7 +13,23 @@ public class ControlPanel extends JPanel {
     private JButton undoButton;
     private JButton redoButton;
     private JButton selectImageButton;
+    private JButton openFolderButton;
     private JButton instructionsButton;
+    private JButton addToChainButton;
+    private JButton clearChainButton;
+    private JLabel chainLabel;
+    private JButton cancelButton;
+    private JProgressBar progressBar;
+    private JProgressBar saveProgressBar;
+    private JCheckBox previewBox;
+    private JCheckBox statsBox;
+    private HistogramView histogramView;
+    private JPanel parameterPanel;
+    private FilterChain chain = new FilterChain(List.of());
+    // The values last chosen for each filter, kept when switching between filters.
+    private final Map<String, FilterSettings> tuned = new HashMap<>();
+    private boolean busy;
+    private boolean saving;
     private ImagePanel imagePanel;
 
     public ControlPanel(ImagePanel imagePanel) {
@@ -25,21 +45,62 @@ public class ControlPanel extends JPanel {
         selectImageButton = new JButton("Select Image");
         selectImageButton.addActionListener(e -> imagePanel.loadImage());
 
-        filterBox = new JComboBox<>(new String[]{
-                "Black-White", "Grayscale", "Posterize", "Tint",
-                "Color Shift Right", "Mirror", "Pixelate", "Show Borders",
-                "Eliminate Red", "Negative"
-        });
+        openFolderButton = new JButton("Open Folder");
+        openFolderButton.setToolTipText("Browse the images of a folder; neighbours are decoded ahead of time");
+        openFolderButton.addActionListener(e -> imagePanel.openFolder());
+
+        filterBox = new JComboBox<>(FilterRegistry.getNames().toArray(new String[0]));
         filterBox.setEnabled(false);
+        filterBox.addActionListener(e -> showParameters());
+
+        parameterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 0));
 
         applyButton = new JButton("Apply");
         applyButton.setEnabled(false);
-        applyButton.addActionListener(e -> imagePanel.applyFilter((String) filterBox.getSelectedItem()));
+        applyButton.addActionListener(e -> applySelection());
+
+        addToChainButton = new JButton("Add to Chain");
+        addToChainButton.setEnabled(false);
+        addToChainButton.addActionListener(e -> {
+            chain = chain.then(selectedFilter(), selectedSettings());
+            updateChainLabel();
+        });
+
+        clearChainButton = new JButton("Clear Chain");
+        clearChainButton.setEnabled(false);
+        clearChainButton.addActionListener(e -> {
+            chain = new FilterChain(List.of());
+            updateChainLabel();
+        });
+
+        chainLabel = new JLabel();
+
+        cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
+        cancelButton.addActionListener(e -> imagePanel.cancelFilter());
+
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setVisible(false);
+
+        previewBox = new JCheckBox("Preview Editing");
+        previewBox.setToolTipText("Edit a screen-sized copy; the full image is rendered in the background and on save");
+        previewBox.addActionListener(e -> imagePanel.setProxyEditing(previewBox.isSelected()));
+
+        statsBox = new JCheckBox("Stats");
+        statsBox.setToolTipText("Record timings and show them over the image");
+        statsBox.addActionListener(e -> {
+            FilterMetrics.setOverlayVisible(statsBox.isSelected());
+            imagePanel.repaint();
+        });
 
         saveButton = new JButton("Save");
         saveButton.setEnabled(false);
         saveButton.addActionListener(e -> imagePanel.saveImage());
 
+        saveProgressBar = new JProgressBar(0, 100);
+        saveProgressBar.setStringPainted(true);
+        saveProgressBar.setVisible(false);
+
         undoButton = new JButton("Undo");
         undoButton.setEnabled(false);
         undoButton.addActionListener(e -> imagePanel.undoFilter());
@@ -52,48 +113,197 @@ public class ControlPanel extends JPanel {
         clearButton.setEnabled(false);
         clearButton.addActionListener(e -> imagePanel.clearFilters());
 
+        histogramView = new HistogramView(imagePanel);
+
         instructionsButton = new JButton("?");
         instructionsButton.setToolTipText("Instructions");
         instructionsButton.addActionListener(e -> imagePanel.showInstructions());
 
         topPanel.add(selectImageButton);
+        topPanel.add(openFolderButton);
+        topPanel.add(previewBox);
+        topPanel.add(addToChainButton);
+        topPanel.add(clearChainButton);
+        topPanel.add(chainLabel);
 
         middlePanel.add(new JLabel("Filter:"));
         middlePanel.add(filterBox);
+        middlePanel.add(parameterPanel);
         middlePanel.add(applyButton);
         middlePanel.add(saveButton);
+        middlePanel.add(saveProgressBar);
 
         bottomPanel.add(undoButton);
         bottomPanel.add(redoButton);
         bottomPanel.add(clearButton);
+        bottomPanel.add(progressBar);
+        bottomPanel.add(cancelButton);
 
+        instructionPanel.add(histogramView);
+        instructionPanel.add(statsBox);
         instructionPanel.add(instructionsButton);
 
         add(topPanel, BorderLayout.NORTH);
         add(middlePanel, BorderLayout.CENTER);
         add(bottomPanel, BorderLayout.SOUTH);
         add(instructionPanel, BorderLayout.EAST);
+        showParameters();
+    }
+
+    private String selectedFilter() {
+        return (String) filterBox.getSelectedItem();
+    }
+
+    private FilterSettings selectedSettings() {
+        return tuned.computeIfAbsent(selectedFilter(), name -> FilterSettings.defaults(FilterRegistry.get(name)));
+    }
+
+    // One slider per numeric parameter of the selected filter, a swatch button per color and a
+    // drop-down per choice. Changing a value previews the filter; Apply commits it with the
+    // values shown.
+    private void showParameters() {
+        imagePanel.clearPreview();
+        parameterPanel.removeAll();
+        PixelFilter filter = FilterRegistry.get(selectedFilter());
+        FilterSettings settings = selectedSettings();
+        for (FilterParameter parameter : filter.getParameters()) {
+            String name = parameter.getName();
+            parameterPanel.add(new JLabel(Character.toUpperCase(name.charAt(0)) + name.substring(1) + ":"));
+            if (parameter.getType() == FilterParameter.Type.COLOR) {
+                JButton swatch = new JButton(swatch(settings.getColor(name)));
+                swatch.setToolTipText("Choose the " + name);
+                swatch.addActionListener(e -> {
+                    Color chosen = JColorChooser.showDialog(this, "Choose " + name, selectedSettings().getColor(name));
+                    if (chosen != null) {
+                        swatch.setIcon(swatch(chosen));
+                        setParameter(name, chosen.getRGB() & 0xFFFFFF);
+                    }
+                });
+                parameterPanel.add(swatch);
+            } else if (parameter.getType() == FilterParameter.Type.CHOICE) {
+                JComboBox<String> choices = new JComboBox<>();
+                for (String choice : parameter.getChoices()) {
+                    choices.addItem(Character.toUpperCase(choice.charAt(0)) + choice.substring(1));
+                }
+                choices.setSelectedIndex(settings.getInt(name));
+                choices.addActionListener(e -> setParameter(name, choices.getSelectedIndex()));
+                parameterPanel.add(choices);
+            } else {
+                JSlider slider = new JSlider((int) parameter.getMin(), (int) parameter.getMax(), (int) settings.get(name));
+                slider.setPreferredSize(new Dimension(140, slider.getPreferredSize().height));
+                JLabel value = new JLabel(parameter.format(settings.get(name)));
+                slider.addChangeListener(e -> {
+                    value.setText(parameter.format(slider.getValue()));
+                    setParameter(name, slider.getValue());
+                });
+                parameterPanel.add(slider);
+                parameterPanel.add(value);
+            }
+        }
+        for (Component component : parameterPanel.getComponents()) {
+            component.setEnabled(filterBox.isEnabled());
+        }
+        parameterPanel.revalidate();
+        parameterPanel.repaint();
+    }
+
+    private void setParameter(String name, double value) {
+        tuned.put(selectedFilter(), selectedSettings().with(name, value));
+        imagePanel.previewFilter(FilterChain.of(selectedFilter(), selectedSettings()));
+    }
+
+    private static Icon swatch(Color color) {
+        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+        Graphics g = image.getGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, 16, 16);
+        g.dispose();
+        return new ImageIcon(image);
+    }
+
+    // With an empty chain Apply uses the filter in the combo box, otherwise the whole chain is
+    // applied as one operation.
+    private void applySelection() {
+        if (chain.isEmpty()) {
+            imagePanel.applyFilters(FilterChain.of(selectedFilter(), selectedSettings()));
+        } else {
+            imagePanel.applyFilters(chain);
+        }
+    }
+
+    private void updateChainLabel() {
+        chainLabel.setText(chain.isEmpty() ? "" : "Chain: " + chain);
+        clearChainButton.setEnabled(!chain.isEmpty());
     }
 
     public void enableControls(boolean enabled) {
         filterBox.setEnabled(enabled);
+        for (Component component : parameterPanel.getComponents()) {
+            component.setEnabled(enabled);
+        }
+        addToChainButton.setEnabled(enabled);
         applyButton.setEnabled(enabled);
-        saveButton.setEnabled(enabled);
+        saveButton.setEnabled(enabled && !saving);
         clearButton.setEnabled(enabled);
         updateUndoRedoButtonState();
         updateClearButtonState();
     }
 
+    // While a filter runs in the background only Apply (which queues) and Cancel stay usable.
+    public void setBusy(boolean busy) {
+        this.busy = busy;
+        selectImageButton.setEnabled(!busy);
+        openFolderButton.setEnabled(!busy);
+        saveButton.setEnabled(!busy && !saving);
+        previewBox.setEnabled(!busy);
+        cancelButton.setEnabled(busy);
+        progressBar.setValue(0);
+        progressBar.setVisible(busy);
+        if (busy) {
+            undoButton.setEnabled(false);
+            redoButton.setEnabled(false);
+            clearButton.setEnabled(false);
+        }
+    }
+
+    // While an image decodes only Select Image (which replaces the load) and Cancel are usable.
+    public void setLoading(boolean loading) {
+        previewBox.setEnabled(!loading);
+        cancelButton.setEnabled(loading);
+        progressBar.setIndeterminate(loading);
+        progressBar.setVisible(loading);
+    }
+
+    public void setProgress(int percent) {
+        progressBar.setValue(percent);
+    }
+
+    // A save runs alongside editing; only a second save is held off until it finishes.
+    public void setSaving(boolean saving) {
+        this.saving = saving;
+        saveButton.setEnabled(!saving && !busy && filterBox.isEnabled());
+        saveProgressBar.setValue(0);
+        saveProgressBar.setVisible(saving);
+    }
+
+    public void setSaveProgress(int percent) {
+        saveProgressBar.setValue(percent);
+    }
+
     public void updateApplyButtonState(int pointCount) {
         applyButton.setEnabled(imagePanel.getImage() != null && (pointCount == 0 || pointCount == 4));
     }
 
+    public void updateHistogram() {
+        histogramView.repaint();
+    }
+
     public void updateUndoRedoButtonState() {
-        undoButton.setEnabled(!imagePanel.undoStack.isEmpty());
-        redoButton.setEnabled(!imagePanel.redoStack.isEmpty());
+        undoButton.setEnabled(imagePanel.history.canUndo());
+        redoButton.setEnabled(imagePanel.history.canRedo());
     }
 
     public void updateClearButtonState() {
-        clearButton.setEnabled(!imagePanel.undoStack.isEmpty());
+        clearButton.setEnabled(imagePanel.history.canUndo());
     }
 }
@@ -0,0 +1,341 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Convolves rows of an image with small kernels, the engine behind the blur, sharpen and edge
+// filters. The rows are worked on a tile at a time: each tile is loaded once, channel by
+// channel, into planes with a margin of the kernel radius, so pixels past the edge of the
+// image are made up in one place (see Edge) and the kernel loops never branch. Separable
+// kernels take a horizontal pass over the tile and its margin rows, then a vertical pass; other
+// kernels are applied directly. Tiles of -Dconvolution.tile pixels (wider for large radii) keep
+// the planes of one tile in cache between the passes.
+//
+// The loaded planes are ints, the horizontal pass writes floats and the responses are doubles.
+// The JIT only vectorizes a loop that reads one array and writes another if it can tell they
+// do not overlap, which it can for arrays of different types.
+//
+// Every pixel is summed over the same taps in the same order wherever the tile boundaries fall,
+// so banded, tiled and whole-image runs give identical results.
+public class Convolution {
+    private static final int TILE = Math.max(16, Integer.getInteger("convolution.tile", 128));
+
+    // How the pixels beyond the edge of the image are made up: CLAMP repeats the edge pixel,
+    // MIRROR reflects the image about it and ZERO takes them as transparent black. Filters
+    // take it as the 'edges' choice parameter, whose index is the ordinal.
+    public enum Edge {
+        CLAMP,
+        MIRROR,
+        ZERO;
+
+        static FilterParameter parameter() {
+            List<String> names = new ArrayList<>();
+            for (Edge edge : values()) {
+                names.add(edge.name().toLowerCase(Locale.ROOT));
+            }
+            return FilterParameter.choice("edges", names, 0);
+        }
+
+        static Edge of(FilterSettings settings) {
+            return values()[settings.getInt("edges")];
+        }
+
+        // The coordinate in [0, size) that stands in for v, or -1 for a ZERO pixel.
+        int map(int v, int size) {
+            if (v >= 0 && v < size) {
+                return v;
+            }
+            switch (this) {
+                case MIRROR:
+                    if (size == 1) {
+                        return 0;
+                    }
+                    int period = 2 * (size - 1);
+                    v = Math.floorMod(v, period);
+                    return v < size ? v : period - v;
+                case ZERO:
+                    return -1;
+                default:
+                    return Math.max(0, Math.min(size - 1, v));
+            }
+        }
+    }
+
+    // A square kernel of odd size, either the outer product of a column and a row vector or a
+    // full matrix of weights. The weights are used as given, not flipped.
+    public static class Kernel {
+        final int radius;
+        final float[] row;
+        final float[] column;
+        final float[] weights;
+
+        private Kernel(int radius, float[] row, float[] column, float[] weights) {
+            this.radius = radius;
+            this.row = row;
+            this.column = column;
+            this.weights = weights;
+        }
+
+        static Kernel separable(float[] row, float[] column) {
+            if (row.length != column.length || row.length % 2 == 0) {
+                throw new IllegalArgumentException("Separable kernels need two vectors of the same odd length");
+            }
+            return new Kernel(row.length / 2, row, column, null);
+        }
+
+        // weights are size x size, row by row.
+        static Kernel of(int size, float... weights) {
+            if (size % 2 == 0 || weights.length != size * size) {
+                throw new IllegalArgumentException("Kernels need size x size weights with an odd size");
+            }
+            return new Kernel(size / 2, null, null, weights);
+        }
+
+        // Covers radius pixels either side, which is three standard deviations; a radius of 0
+        // leaves the image as it is.
+        static Kernel gaussian(int radius) {
+            float[] weights = new float[2 * radius + 1];
+            double sigma = Math.max(radius, 1) / 3.0;
+            double sum = 0;
+            for (int i = -radius; i <= radius; i++) {
+                sum += Math.exp(-i * i / (2 * sigma * sigma));
+            }
+            for (int i = -radius; i <= radius; i++) {
+                weights[i + radius] = (float) (Math.exp(-i * i / (2 * sigma * sigma)) / sum);
+            }
+            return separable(weights, weights);
+        }
+
+        boolean isSeparable() {
+            return row != null;
+        }
+    }
+
+    // Side of the tiles a band is worked in, so the margin stays a fraction of every tile.
+    static int tileSize(int radius) {
+        return Math.max(TILE, 4 * radius);
+    }
+
+    // Writes every pixel of rows [y0, y1) of dst from src, which must be a separate buffer. With
+    // one kernel each channel is its response, with two (the x and y derivatives of an edge
+    // operator) the length of the gradient they make up. Alpha is convolved like the colours
+    // if convolveAlpha is set and otherwise copied from src; images without alpha get 0.
+    static void convolve(PixelBuffer src, PixelBuffer dst, int y0, int y1, Edge edge, boolean convolveAlpha,
+                         Kernel... kernels) {
+        if (kernels.length < 1 || kernels.length > 2) {
+            throw new IllegalArgumentException("One kernel, or two for a gradient: " + kernels.length);
+        }
+        int radius = 0;
+        for (Kernel kernel : kernels) {
+            radius = Math.max(radius, kernel.radius);
+        }
+        int tile = tileSize(radius);
+        int channels = convolveAlpha && src.hasAlpha ? 4 : 3;
+        int tileWidth = Math.min(tile, src.width);
+        int tileHeight = Math.min(tile, y1 - y0);
+        int loadedWidth = tileWidth + 2 * radius;
+        int loadedHeight = tileHeight + 2 * radius;
+        int[][] loaded = new int[channels][loadedWidth * loadedHeight];
+        float[] pass = new float[loadedWidth * loadedHeight];
+        double[][][] responses = new double[kernels.length][channels][tileWidth * tileHeight];
+        int[] columns = new int[loadedWidth];
+        for (int ty = y0; ty < y1; ty += tile) {
+            int th = Math.min(tile, y1 - ty);
+            for (int tx = 0; tx < src.width; tx += tile) {
+                int tw = Math.min(tile, src.width - tx);
+                int lw = tw + 2 * radius;
+                load(src, tx - radius, ty - radius, lw, th + 2 * radius, edge, columns, loaded);
+                for (int k = 0; k < kernels.length; k++) {
+                    // Kernels smaller than the margin start that much further in.
+                    int inset = radius - kernels[k].radius;
+                    for (int c = 0; c < channels; c++) {
+                        if (kernels[k].isSeparable()) {
+                            horizontal(loaded[c], lw, inset, th + 2 * radius, tw, kernels[k].row, pass);
+                            vertical(pass, tw, inset, th, kernels[k].column, responses[k][c]);
+                        } else {
+                            full(loaded[c], lw, inset, tw, th, kernels[k], responses[k][c]);
+                        }
+                    }
+                }
+                store(src, dst, tx, ty, tw, th, channels, responses);
+            }
+        }
+    }
+
+    // The width x height pixels from (x0, y0) on, which may lie partly outside src, into one
+    // plane per channel: red, green, blue and then alpha.
+    private static void load(PixelBuffer src, int x0, int y0, int width, int height, Edge edge, int[] columns,
+                             int[][] planes) {
+        for (int x = 0; x < width; x++) {
+            columns[x] = edge.map(x0 + x, src.width);
+        }
+        int channels = planes.length;
+        for (int y = 0; y < height; y++) {
+            int sy = edge.map(y0 + y, src.height);
+            int o = y * width;
+            if (sy < 0) {
+                for (int[] plane : planes) {
+                    Arrays.fill(plane, o, o + width, 0);
+                }
+                continue;
+            }
+            int row = src.index(0, sy);
+            for (int x = 0; x < width; x++, o++) {
+                int rgb = columns[x] < 0 ? 0 : src.data[row + columns[x]];
+                planes[0][o] = (rgb >> 16) & 0xFF;
+                planes[1][o] = (rgb >> 8) & 0xFF;
+                planes[2][o] = rgb & 0xFF;
+                if (channels == 4) {
+                    planes[3][o] = rgb >>> 24;
+                }
+            }
+        }
+    }
+
+    // Taps outermost, so the inner loops run straight along a row.
+    private static void horizontal(int[] in, int inWidth, int inset, int rows, int width, float[] taps,
+                                   float[] out) {
+        for (int y = 0; y < rows; y++) {
+            int o = y * width;
+            Arrays.fill(out, o, o + width, 0);
+            for (int t = 0; t < taps.length; t++) {
+                float w = taps[t];
+                int i = y * inWidth + inset + t;
+                for (int x = 0; x < width; x++) {
+                    out[o + x] += w * in[i + x];
+                }
+            }
+        }
+    }
+
+    private static void vertical(float[] in, int width, int inset, int rows, float[] taps, double[] out) {
+        for (int y = 0; y < rows; y++) {
+            int o = y * width;
+            Arrays.fill(out, o, o + width, 0);
+            for (int t = 0; t < taps.length; t++) {
+                float w = taps[t];
+                int i = (y + inset + t) * width;
+                for (int x = 0; x < width; x++) {
+                    out[o + x] += w * in[i + x];
+                }
+            }
+        }
+    }
+
+    private static void full(int[] in, int inWidth, int inset, int width, int rows, Kernel kernel, double[] out) {
+        int size = 2 * kernel.radius + 1;
+        for (int y = 0; y < rows; y++) {
+            int o = y * width;
+            Arrays.fill(out, o, o + width, 0);
+            for (int ky = 0; ky < size; ky++) {
+                for (int kx = 0; kx < size; kx++) {
+                    float w = kernel.weights[ky * size + kx];
+                    if (w == 0) {
+                        continue;
+                    }
+                    int i = (y + inset + ky) * inWidth + inset + kx;
+                    for (int x = 0; x < width; x++) {
+                        out[o + x] += w * in[i + x];
+                    }
+                }
+            }
+        }
+    }
+
+    private static void store(PixelBuffer src, PixelBuffer dst, int x0, int y0, int width, int height, int channels,
+                              double[][][] responses) {
+        boolean gradient = responses.length == 2;
+        int[] shifts = {16, 8, 0, 24};
+        for (int y = 0; y < height; y++) {
+            int s = src.index(x0, y0 + y);
+            int o = dst.index(x0, y0 + y);
+            for (int x = 0; x < width; x++, s++, o++) {
+                int i = y * width + x;
+                int rgb = channels == 4 || !src.hasAlpha ? 0 : src.data[s] & 0xFF000000;
+                for (int c = 0; c < channels; c++) {
+                    double v = responses[0][c][i];
+                    if (gradient) {
+                        double d = responses[1][c][i];
+                        v = Math.sqrt(v * v + d * d);
+                    }
+                    int value = (int) (v + 0.5);
+                    rgb |= (value < 0 ? 0 : value > 255 ? 255 : value) << shifts[c];
+                }
+                dst.data[o] = rgb & dst.storeMask;
+            }
+        }
+    }
+
+    // Box Blur: the mean of the (2 * radius + 1)^2 pixels around each one, from a summed-area
+    // table per tile, so the cost per pixel does not grow with the radius. Otherwise as
+    // convolve with convolveAlpha set.
+    static void boxBlur(PixelBuffer src, PixelBuffer dst, int y0, int y1, int radius, Edge edge) {
+        int tile = tileSize(radius);
+        int size = 2 * radius + 1;
+        int mask = (src.hasAlpha ? 0xFFFFFFFF : 0xFFFFFF) & dst.storeMask;
+        SummedAreaTable table = new SummedAreaTable(Math.min(tile, src.width) + 2 * radius,
+                Math.min(tile, y1 - y0) + 2 * radius);
+        for (int ty = y0; ty < y1; ty += tile) {
+            int th = Math.min(tile, y1 - ty);
+            for (int tx = 0; tx < src.width; tx += tile) {
+                int tw = Math.min(tile, src.width - tx);
+                table.sum(src, tx - radius, ty - radius, tw + 2 * radius, th + 2 * radius, edge);
+                for (int y = 0; y < th; y++) {
+                    int o = dst.index(tx, ty + y);
+                    for (int x = 0; x < tw; x++) {
+                        dst.data[o + x] = table.average(x, y, x + size, y + size) & mask;
+                    }
+                }
+            }
+        }
+    }
+
+    // Pixelate: block k covers [floor(k * blockSize), floor((k + 1) * blockSize)) on both axes
+    // and takes the mean colour of its pixels. Blocks are summed a tile of whole blocks at a
+    // time, and each row of blocks is written as one row that is then copied down, so the work
+    // per pixel stays the same as blocks grow; blocks of one pixel are left as they are. y0 must
+    // be the first row of a block; blocks only read themselves, so p may be filtered in place.
+    static void pixelate(PixelBuffer p, int y0, int y1, double blockSize) {
+        int mask = (p.hasAlpha ? 0xFFFFFFFF : 0xFFFFFF) & p.storeMask;
+        if (blockSize <= 1) {
+            for (int y = y0; y < y1; y++) {
+                for (int i = p.index(0, y); i < p.index(p.width, y); i++) {
+                    p.data[i] &= mask;
+                }
+            }
+            return;
+        }
+        // Block k of a row starts at column edges[k]; the last entry is the width.
+        int[] edges = new int[(int) Math.ceil(p.width / blockSize) + 1];
+        for (int k = 0; k < edges.length; k++) {
+            edges[k] = Math.min(p.width, (int) (k * blockSize));
+        }
+        int blocksPerTile = Math.max(1, TILE / (int) Math.ceil(blockSize));
+        int tile = (int) Math.ceil(blocksPerTile * blockSize);
+        SummedAreaTable table = new SummedAreaTable(Math.min(tile, p.width), Math.min(tile, y1 - y0));
+        for (int by = (int) Math.ceil(y0 / blockSize); (int) (by * blockSize) < y1; by += blocksPerTile) {
+            int top = (int) (by * blockSize);
+            int bottom = Math.min(y1, (int) ((by + blocksPerTile) * blockSize));
+            for (int bx = 0; bx < edges.length - 1; bx += blocksPerTile) {
+                int last = Math.min(edges.length - 1, bx + blocksPerTile);
+                int left = edges[bx];
+                int right = edges[last];
+                table.sum(p, left, top, right - left, bottom - top, Edge.CLAMP);
+                for (int y = by; (int) (y * blockSize) < bottom; y++) {
+                    int blockTop = (int) (y * blockSize) - top;
+                    int blockBottom = Math.min(bottom, (int) ((y + 1) * blockSize)) - top;
+                    int row = p.index(0, top + blockTop);
+                    for (int x = bx; x < last; x++) {
+                        int rgb = table.average(edges[x] - left, blockTop, edges[x + 1] - left, blockBottom) & mask;
+                        for (int i = row + edges[x]; i < row + edges[x + 1]; i++) {
+                            p.data[i] = rgb;
+                        }
+                    }
+                    for (int copy = blockTop + 1; copy < blockBottom; copy++) {
+                        System.arraycopy(p.data, row + left, p.data, p.index(left, top + copy), right - left);
+                    }
+                }
+            }
+        }
+    }
+}
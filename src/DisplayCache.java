@@ -0,0 +1,95 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+
+// Keeps the image scaled to its on-screen size so repaints are a 1:1 blit. The scaled copy is a
+// plain INT_RGB image (nearest neighbour, like the default drawImage scaling); a VolatileImage
+// mirror of it is blitted when the pipeline supports acceleration.
+public class DisplayCache {
+    private BufferedImage source;
+    private BufferedImage scaled;
+    private VolatileImage accelerated;
+    private Rectangle staleAccelerated;
+    private int[] sourceX;
+
+    // The image as last scaled for the screen, or null before the first validate.
+    public BufferedImage getScaled() {
+        return scaled;
+    }
+
+    public void invalidate() {
+        source = null;
+    }
+
+    // Rebuilds the scaled copy if the image object or the target size changed.
+    public void validate(BufferedImage image, int width, int height) {
+        if (image == source && scaled != null && scaled.getWidth() == width && scaled.getHeight() == height) {
+            return;
+        }
+        source = image;
+        scaled = new BufferedImage(Math.max(1, width), Math.max(1, height), BufferedImage.TYPE_INT_RGB);
+        sourceX = new int[scaled.getWidth()];
+        for (int x = 0; x < sourceX.length; x++) {
+            sourceX[x] = (int) ((long) x * image.getWidth() / scaled.getWidth());
+        }
+        rescale(0, 0, scaled.getWidth(), scaled.getHeight());
+        accelerated = null;
+    }
+
+    // Re-scales only the display pixels whose source lies in imageRegion.
+    public void refresh(Rectangle imageRegion) {
+        if (source == null || scaled == null) {
+            return;
+        }
+        int dw = scaled.getWidth();
+        int dh = scaled.getHeight();
+        int x0 = (int) ((long) imageRegion.x * dw / source.getWidth());
+        int y0 = (int) ((long) imageRegion.y * dh / source.getHeight());
+        int x1 = (int) Math.min(dw, ((long) (imageRegion.x + imageRegion.width) * dw + source.getWidth() - 1) / source.getWidth() + 1);
+        int y1 = (int) Math.min(dh, ((long) (imageRegion.y + imageRegion.height) * dh + source.getHeight() - 1) / source.getHeight() + 1);
+        rescale(x0, y0, x1, y1);
+        Rectangle dirty = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        staleAccelerated = staleAccelerated == null ? dirty : staleAccelerated.union(dirty);
+    }
+
+    private void rescale(int x0, int y0, int x1, int y1) {
+        PixelBuffer src = PixelBuffer.of(source);
+        PixelBuffer dst = PixelBuffer.of(scaled);
+        for (int y = y0; y < y1; y++) {
+            int row = src.index(0, (int) ((long) y * source.getHeight() / scaled.getHeight()));
+            int out = dst.index(0, y);
+            for (int x = x0; x < x1; x++) {
+                dst.data[out + x] = src.data[row + sourceX[x]];
+            }
+        }
+        dst.commit();
+    }
+
+    public void paint(Graphics g, int x, int y, GraphicsConfiguration gc) {
+        if (scaled == null) {
+            return;
+        }
+        if (gc == null) {
+            g.drawImage(scaled, x, y, null);
+            return;
+        }
+        do {
+            int status = accelerated == null ? VolatileImage.IMAGE_INCOMPATIBLE : accelerated.validate(gc);
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                accelerated = gc.createCompatibleVolatileImage(scaled.getWidth(), scaled.getHeight());
+                status = VolatileImage.IMAGE_RESTORED;
+            }
+            if (status == VolatileImage.IMAGE_RESTORED) {
+                staleAccelerated = new Rectangle(0, 0, scaled.getWidth(), scaled.getHeight());
+            }
+            if (staleAccelerated != null) {
+                Graphics2D vg = accelerated.createGraphics();
+                vg.setClip(staleAccelerated);
+                vg.drawImage(scaled, 0, 0, null);
+                vg.dispose();
+                staleAccelerated = null;
+            }
+            g.drawImage(accelerated, x, y, null);
+        } while (accelerated.contentsLost());
+    }
+}
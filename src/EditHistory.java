@@ -0,0 +1,447 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Undo/redo log that keeps only the pixels an edit overwrote. Redo re-runs the recorded chain,
+// and snapshots evicted under memory pressure are rebuilt by replaying the log from the nearest
+// checkpoint (or the original image).
+public class EditHistory {
+    private static final int CHECKPOINT_INTERVAL = 8;
+
+    public static class Edit {
+        final FilterChain chain;
+        final Rectangle region;
+        // ResultCache fingerprint of the state this edit leads to.
+        long after;
+        private int[] before;
+        private byte[] packed;
+
+        Edit(FilterChain chain, Rectangle region) {
+            this.chain = chain;
+            this.region = new Rectangle(region);
+        }
+
+        public FilterChain getChain() {
+            return chain;
+        }
+
+        public Rectangle getRegion() {
+            return new Rectangle(region);
+        }
+
+        long bytes() {
+            if (before != null) {
+                return (long) before.length * Integer.BYTES;
+            }
+            return packed != null ? packed.length : 0;
+        }
+    }
+
+    private final List<Edit> edits = new ArrayList<>();
+    // State index (number of applied edits) -> compressed full frame.
+    private final TreeMap<Integer, byte[]> checkpoints = new TreeMap<>();
+    private BufferedImage original;
+    private SessionJournal journal;
+    private BufferedImage fingerprinted;
+    private long originalFingerprint;
+    private int cursor;
+    private long budgetBytes;
+
+    public EditHistory(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    // Starts over from a new original. Any journal is detached; attach one for the new
+    // original with setJournal.
+    public void reset(BufferedImage original) {
+        this.original = original;
+        this.journal = null;
+        discard(0);
+        checkpoints.clear();
+        cursor = 0;
+    }
+
+    // Clear Filters: like reset, but a journal stays attached and records it.
+    public void clear(BufferedImage original) {
+        SessionJournal kept = journal;
+        reset(original);
+        journal = kept;
+        if (journal != null && journal.isStarted()) {
+            journal.clear();
+        }
+    }
+
+    // Edits from now on are appended to journal, which starts a new session for this original
+    // with the first one.
+    public void setJournal(SessionJournal journal) {
+        this.journal = journal;
+    }
+
+    // Takes back the edits of a journaled session, on the original this history was reset to,
+    // and returns the state at cursor: the nearest checkpoint plus the edits after it.
+    BufferedImage restore(List<Edit> restored, int cursor, SessionJournal journal) {
+        for (Edit edit : restored) {
+            edit.after = ResultCache.derive(fingerprint(edits.size()), edit.chain, edit.region);
+            edits.add(edit);
+        }
+        this.cursor = cursor;
+        this.journal = journal;
+        return rebuild(cursor);
+    }
+
+    // Drops the original, the snapshots and the checkpoints but keeps the edit log, so a
+    // history costs next to nothing while its image is not open. resume brings it back.
+    public void suspend() {
+        for (Edit edit : edits) {
+            if (edit.before != null) {
+                RasterPool.release(edit.before);
+            }
+            edit.before = null;
+            edit.packed = null;
+        }
+        checkpoints.clear();
+        original = null;
+        fingerprinted = null;
+    }
+
+    // Takes a fresh decode of the original and returns the current state, rebuilt by replaying
+    // the applied edits. If the file changed in the meantime the edits now lead elsewhere, so
+    // their fingerprints are derived again.
+    public BufferedImage resume(BufferedImage original) {
+        long previous = originalFingerprint;
+        this.original = original;
+        if (fingerprint(0) != previous) {
+            for (int i = 0; i < edits.size(); i++) {
+                Edit edit = edits.get(i);
+                edit.after = ResultCache.derive(fingerprint(i), edit.chain, edit.region);
+            }
+        }
+        return rebuild(cursor);
+    }
+
+    public void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        enforceBudget();
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public boolean canUndo() {
+        return cursor > 0;
+    }
+
+    public boolean canRedo() {
+        return cursor < edits.size();
+    }
+
+    // Identifies the current state for ResultCache: the same original and the same edits give
+    // the same fingerprint, also after Clear Filters or undo.
+    public long getFingerprint() {
+        return fingerprint(cursor);
+    }
+
+    private long fingerprint(int state) {
+        if (state > 0) {
+            return edits.get(state - 1).after;
+        }
+        if (fingerprinted != original) {
+            originalFingerprint = ResultCache.fingerprint(original);
+            fingerprinted = original;
+        }
+        return originalFingerprint;
+    }
+
+    public List<Edit> getAppliedEdits() {
+        return new ArrayList<>(edits.subList(0, cursor));
+    }
+
+    public long getMemoryBytes() {
+        long total = 0;
+        for (Edit edit : edits) {
+            total += edit.bytes();
+        }
+        for (byte[] checkpoint : checkpoints.values()) {
+            total += checkpoint.length;
+        }
+        return total;
+    }
+
+    // Must be called before the chain is applied to region of image.
+    public Edit record(BufferedImage image, Rectangle region, FilterChain chain) {
+        discard(cursor);
+        checkpoints.tailMap(cursor, false).clear();
+
+        Edit edit = new Edit(chain, region);
+        edit.after = ResultCache.derive(fingerprint(cursor), chain, region);
+        edit.before = readRegion(image, region);
+        edits.add(edit);
+        cursor++;
+        return edit;
+    }
+
+    // Called once the recorded edit has been applied to image.
+    public void committed(BufferedImage image) {
+        if (journal != null) {
+            if (!journal.isStarted()) {
+                journal.start(fingerprint(0), original.getWidth(), original.getHeight());
+            }
+            Edit edit = edits.get(cursor - 1);
+            journal.edit(edit.chain, edit.region, cursor);
+        }
+        if (cursor % CHECKPOINT_INTERVAL == 0) {
+            int[] frame = readRegion(image, bounds(image));
+            checkpoints.put(cursor, pack(frame));
+            if (journal != null) {
+                journal.checkpoint(cursor, fingerprint(cursor), frame, image.getWidth(), image.getHeight());
+            } else {
+                RasterPool.release(frame);
+            }
+        }
+        enforceBudget();
+    }
+
+    // The region undo would change, or null if there is nothing to undo.
+    public Rectangle getUndoRegion() {
+        return canUndo() ? edits.get(cursor - 1).getRegion() : null;
+    }
+
+    // The region redo would change, or null if there is nothing to redo.
+    public Rectangle getRedoRegion() {
+        return canRedo() ? edits.get(cursor).getRegion() : null;
+    }
+
+    // Returns the region of image that changed, or null if there was nothing to undo.
+    public Rectangle undo(BufferedImage image) {
+        if (!canUndo()) {
+            return null;
+        }
+        Edit edit = edits.get(cursor - 1);
+        int[] before = beforePixels(cursor - 1);
+        writeRegion(image, edit.region, before);
+        if (before != edit.before) {
+            RasterPool.release(before);
+        }
+        cursor--;
+        if (journal != null && journal.isStarted()) {
+            journal.undo();
+        }
+        return edit.getRegion();
+    }
+
+    public Rectangle redo(BufferedImage image) {
+        if (!canRedo()) {
+            return null;
+        }
+        Edit edit = edits.get(cursor);
+        apply(image, cursor);
+        cursor++;
+        if (journal != null && journal.isStarted()) {
+            journal.redo();
+        }
+        return edit.getRegion();
+    }
+
+    // The snapshot itself if it is held raw, otherwise a pooled copy the caller releases.
+    private int[] beforePixels(int index) {
+        Edit edit = edits.get(index);
+        if (edit.before != null) {
+            return edit.before;
+        }
+        if (edit.packed != null) {
+            return unpack(edit.packed, edit.region.width * edit.region.height);
+        }
+        BufferedImage state = rebuild(index);
+        int[] pixels = readRegion(state, edit.region);
+        RasterPool.releaseImage(state);
+        return pixels;
+    }
+
+    // Reconstructs the image as it was after the first `state` edits, starting from the nearest
+    // checkpoint in memory or in the journal.
+    private BufferedImage rebuild(int state) {
+        BufferedImage image = RasterPool.acquireImage(original.getWidth(), original.getHeight());
+        Integer base = checkpoints.floorKey(state);
+        int mapped = journal == null ? -1
+                : journal.readCheckpoint(state, base == null ? 0 : base, this::fingerprint, image);
+        if (mapped > 0) {
+            base = mapped;
+        } else if (base != null) {
+            int[] frame = unpack(checkpoints.get(base), image.getWidth() * image.getHeight());
+            writeRegion(image, bounds(image), frame);
+            RasterPool.release(frame);
+        } else {
+            base = 0;
+            Graphics g = image.getGraphics();
+            g.drawImage(original, 0, 0, null);
+            g.dispose();
+        }
+        for (int i = base; i < state; i++) {
+            apply(image, i);
+        }
+        return image;
+    }
+
+    // Re-runs edit index on image, which must be in the state before it.
+    private void apply(BufferedImage image, int index) {
+        Edit edit = edits.get(index);
+        Rectangle r = edit.region;
+        ResultCache.getInstance().apply(fingerprint(index), r, edit.chain,
+                image.getSubimage(r.x, r.y, r.width, r.height), FilterProgress.NONE);
+    }
+
+    // First compress raw snapshots, oldest first, then drop compressed ones (they can be
+    // replayed), and only then give up checkpoints. With no budget at all nothing packed could
+    // be kept, so snapshots are dropped without being compressed first.
+    private void enforceBudget() {
+        long used = getMemoryBytes();
+        for (int i = 0; i < edits.size() && used > budgetBytes && budgetBytes > 0; i++) {
+            Edit edit = edits.get(i);
+            if (edit.before != null) {
+                used -= edit.bytes();
+                edit.packed = pack(edit.before);
+                RasterPool.release(edit.before);
+                edit.before = null;
+                used += edit.bytes();
+            }
+        }
+        for (int i = 0; i < edits.size() && used > budgetBytes; i++) {
+            Edit edit = edits.get(i);
+            used -= edit.bytes();
+            if (edit.before != null) {
+                RasterPool.release(edit.before);
+            }
+            edit.packed = null;
+            edit.before = null;
+        }
+        while (used > budgetBytes && !checkpoints.isEmpty()) {
+            used -= checkpoints.pollFirstEntry().getValue().length;
+        }
+    }
+
+    // Drops the edits from index on, returning their raw snapshots to the pool.
+    private void discard(int index) {
+        List<Edit> dropped = edits.subList(index, edits.size());
+        for (Edit edit : dropped) {
+            if (edit.before != null) {
+                RasterPool.release(edit.before);
+                edit.before = null;
+            }
+        }
+        dropped.clear();
+    }
+
+    private static Rectangle bounds(BufferedImage image) {
+        return new Rectangle(0, 0, image.getWidth(), image.getHeight());
+    }
+
+    // The pixels of r, in an array from RasterPool.
+    static int[] readRegion(BufferedImage image, Rectangle r) {
+        PixelBuffer p = PixelBuffer.of(image.getSubimage(r.x, r.y, r.width, r.height));
+        int[] pixels = RasterPool.acquire(r.width * r.height);
+        for (int y = 0; y < r.height; y++) {
+            System.arraycopy(p.data, p.index(0, y), pixels, y * r.width, r.width);
+        }
+        return pixels;
+    }
+
+    // Copies r of from into the same-sized rectangle at (x, y) of to, without an intermediate array.
+    static void copyRegion(BufferedImage from, Rectangle r, BufferedImage to, int x, int y) {
+        PixelBuffer src = PixelBuffer.of(from.getSubimage(r.x, r.y, r.width, r.height));
+        PixelBuffer dst = PixelBuffer.of(to.getSubimage(x, y, r.width, r.height));
+        for (int row = 0; row < r.height; row++) {
+            System.arraycopy(src.data, src.index(0, row), dst.data, dst.index(0, row), r.width);
+        }
+        dst.commit();
+    }
+
+    static void writeRegion(BufferedImage image, Rectangle r, int[] pixels) {
+        PixelBuffer p = PixelBuffer.of(image.getSubimage(r.x, r.y, r.width, r.height));
+        for (int y = 0; y < r.height; y++) {
+            System.arraycopy(pixels, y * r.width, p.data, p.index(0, y), r.width);
+        }
+        p.commit();
+    }
+
+    // A Deflater, an Inflater and the buffers pack and unpack go through, one set per thread, so
+    // the only allocation proportional to the image is the packed result itself.
+    private static final class Codec {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        final Inflater inflater = new Inflater();
+        final byte[] chunk = new byte[CODEC_CHUNK_PIXELS * Integer.BYTES];
+        final IntBuffer chunkInts = ByteBuffer.wrap(chunk).asIntBuffer();
+        // Grows to the largest packed size this thread has produced.
+        byte[] packed = new byte[1 << 16];
+    }
+
+    private static final int CODEC_CHUNK_PIXELS = 1 << 14;
+    private static final ThreadLocal<Codec> CODEC = ThreadLocal.withInitial(Codec::new);
+
+    // Deflates the pixels as big-endian ints, a chunk at a time.
+    static byte[] pack(int[] pixels) {
+        Codec codec = CODEC.get();
+        Deflater deflater = codec.deflater;
+        deflater.reset();
+        int next = 0;
+        int length = 0;
+        if (pixels.length == 0) {
+            deflater.finish();
+        }
+        while (!deflater.finished()) {
+            if (deflater.needsInput() && next < pixels.length) {
+                int count = Math.min(CODEC_CHUNK_PIXELS, pixels.length - next);
+                codec.chunkInts.clear();
+                codec.chunkInts.put(pixels, next, count);
+                deflater.setInput(codec.chunk, 0, count * Integer.BYTES);
+                next += count;
+                if (next == pixels.length) {
+                    deflater.finish();
+                }
+            }
+            if (length == codec.packed.length) {
+                codec.packed = Arrays.copyOf(codec.packed, 2 * length);
+            }
+            length += deflater.deflate(codec.packed, length, codec.packed.length - length);
+        }
+        return Arrays.copyOf(codec.packed, length);
+    }
+
+    // Inflates straight into a pooled array, a chunk at a time.
+    static int[] unpack(byte[] packed, int length) {
+        Codec codec = CODEC.get();
+        Inflater inflater = codec.inflater;
+        inflater.reset();
+        inflater.setInput(packed);
+        int[] pixels = RasterPool.acquire(length);
+        try {
+            int next = 0;
+            while (next < length) {
+                int bytes = Math.min(CODEC_CHUNK_PIXELS, length - next) * Integer.BYTES;
+                int read = 0;
+                while (read < bytes) {
+                    int inflated = inflater.inflate(codec.chunk, read, bytes - read);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new DataFormatException("snapshot ends early");
+                    }
+                    read += inflated;
+                }
+                codec.chunkInts.clear();
+                codec.chunkInts.get(pixels, next, bytes / Integer.BYTES);
+                next += bytes / Integer.BYTES;
+            }
+        } catch (DataFormatException e) {
+            RasterPool.release(pixels);
+            throw new IllegalStateException("Corrupt history snapshot", e);
+        }
+        return pixels;
+    }
+}
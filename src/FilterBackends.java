@@ -0,0 +1,239 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Decides which implementation runs each filter: its own scalar kernel, SimdKernels when the
+// Vector API is present, or Java2DKernels. The first time a filter runs (or at startup, see
+// calibrateAll), every backend that has it filters the same random sample of
+// -Dfilters.calibration.size pixels square; a backend whose output differs from the scalar
+// kernel's is ruled out, and the fastest of the rest runs the filter from then on.
+// -Dfilters.backend=scalar, simd or java2d skips the timing and uses that backend wherever it
+// has the filter.
+public class FilterBackends {
+    enum Backend {
+        SCALAR,
+        SIMD,
+        JAVA2D
+    }
+
+    // Rows [y0, y1) of dst, as in PixelFilter.apply.
+    interface Kernel {
+        void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1);
+    }
+
+    private static final int SAMPLE_SIZE = Integer.getInteger("filters.calibration.size", 256);
+    private static final String FORCED = System.getProperty("filters.backend", "auto").toLowerCase(Locale.ROOT);
+    // Enough for the JIT to compile the scalar and vector kernels before the timed runs.
+    private static final int WARMUP_RUNS = 30;
+    private static final int TIMED_RUNS = 10;
+
+    // Null unless the Vector API is available (see SimdKernels).
+    private static final SimdKernels SIMD = SimdKernels.load();
+    private static final Java2DKernels JAVA2D = new Java2DKernels();
+    private static final Map<String, Backend> CHOSEN = new ConcurrentHashMap<>();
+    // Best time in nanoseconds of every backend that matched, per calibrated filter.
+    private static final Map<String, Map<Backend, Long>> TIMINGS = new ConcurrentHashMap<>();
+    // Calibration only compares SIMD and Java2D with the scalar kernel for the default settings
+    // on an opaque INT_RGB sample, so every other combination of settings and pixel layout is
+    // compared again, on a small sample, the first time it comes up. Keyed by backend, filter
+    // name, settings, hasAlpha and storeMask.
+    private static final Map<List<Object>, Boolean> MATCHES = new ConcurrentHashMap<>();
+    private static final int MATCH_SAMPLE_SIZE = 48;
+
+    // The kernel filter runs with for these settings. Backends are chosen per filter; one that
+    // has no version for particular settings (e.g. SIMD Posterize with a step that is not a
+    // power of two), or whose output for them differs from the scalar kernel's, leaves them to
+    // the scalar kernel.
+    static Kernel kernel(PixelFilter filter, FilterSettings settings) {
+        Backend backend = choose(filter);
+        boolean supported = backend == Backend.SIMD ? SIMD.supports(filter, settings)
+                : backend == Backend.JAVA2D && JAVA2D.supports(filter, settings);
+        Kernel scalar = backendKernel(Backend.SCALAR, filter, settings);
+        if (!supported) {
+            return scalar;
+        }
+        Kernel fast = backendKernel(backend, filter, settings);
+        return (src, dst, y0, y1) -> {
+            if (matchesScalar(backend, filter, settings, src)) {
+                fast.apply(src, dst, y0, y1);
+            } else {
+                scalar.apply(src, dst, y0, y1);
+            }
+        };
+    }
+
+    private static Kernel backendKernel(Backend backend, PixelFilter filter, FilterSettings settings) {
+        switch (backend) {
+            case SIMD:
+                return (src, dst, y0, y1) -> SIMD.apply(filter, settings, dst, y0, y1);
+            case JAVA2D:
+                return (src, dst, y0, y1) -> JAVA2D.apply(filter, settings, src, dst, y0, y1);
+            default:
+                return (src, dst, y0, y1) -> filter.apply(src, dst, y0, y1, settings);
+        }
+    }
+
+    // True if backend filters buffers laid out like p exactly as the scalar kernel does with
+    // these settings. A slider drag goes through many settings, so the answers are dropped
+    // once there are more than a few thousand.
+    private static boolean matchesScalar(Backend backend, PixelFilter filter, FilterSettings settings, PixelBuffer p) {
+        List<Object> key = List.of(backend, filter.getName(), settings, p.hasAlpha, p.storeMask);
+        Boolean matches = MATCHES.get(key);
+        if (matches == null) {
+            if (MATCHES.size() > 4096) {
+                MATCHES.clear();
+            }
+            int[] sample = new int[MATCH_SAMPLE_SIZE * MATCH_SAMPLE_SIZE];
+            Random random = new Random(42);
+            for (int i = 0; i < sample.length; i++) {
+                sample[i] = random.nextInt() & p.storeMask;
+            }
+            Backend[] compared = {Backend.SCALAR, backend};
+            int[][] outputs = new int[2][];
+            for (int k = 0; k < 2; k++) {
+                PixelBuffer src = PixelBuffer.sample(sample.clone(), MATCH_SAMPLE_SIZE, MATCH_SAMPLE_SIZE, p);
+                PixelBuffer dst = filter.isInPlaceSafe() ? src
+                        : PixelBuffer.sample(new int[sample.length], MATCH_SAMPLE_SIZE, MATCH_SAMPLE_SIZE, p);
+                try {
+                    backendKernel(compared[k], filter, settings).apply(src, dst, 0, src.height);
+                } catch (RuntimeException e) {
+                    break;
+                }
+                outputs[k] = dst.data;
+            }
+            matches = outputs[1] != null && Arrays.equals(outputs[0], outputs[1]);
+            MATCHES.put(key, matches);
+        }
+        return matches;
+    }
+
+    static Backend choose(PixelFilter filter) {
+        Backend chosen = CHOSEN.get(filter.getName());
+        return chosen != null ? chosen : calibrate(filter);
+    }
+
+    // Calibrates every registered filter, so none of them pays for it when it first runs.
+    public static void calibrateAll() {
+        for (String name : FilterRegistry.getNames()) {
+            choose(FilterRegistry.get(name));
+        }
+    }
+
+    private static List<Backend> candidates(PixelFilter filter, FilterSettings settings) {
+        List<Backend> candidates = new ArrayList<>();
+        candidates.add(Backend.SCALAR);
+        // SIMD only ever stood in for per-pixel filters.
+        if (SIMD != null && filter.getKind() == PixelFilter.Kind.POINTWISE && SIMD.supports(filter, settings)) {
+            candidates.add(Backend.SIMD);
+        }
+        if (JAVA2D.supports(filter, settings)) {
+            candidates.add(Backend.JAVA2D);
+        }
+        return candidates;
+    }
+
+    private static synchronized Backend calibrate(PixelFilter filter) {
+        Backend chosen = CHOSEN.get(filter.getName());
+        if (chosen != null) {
+            return chosen;
+        }
+        FilterSettings settings = FilterSettings.defaults(filter);
+        List<Backend> candidates = candidates(filter, settings);
+        chosen = Backend.SCALAR;
+        if (candidates.size() > 1) {
+            for (Backend backend : candidates) {
+                if (backend.name().toLowerCase(Locale.ROOT).equals(FORCED)) {
+                    chosen = backend;
+                }
+            }
+            if (FORCED.equals("auto")) {
+                chosen = fastest(filter, settings, candidates);
+            }
+        }
+        CHOSEN.put(filter.getName(), chosen);
+        return chosen;
+    }
+
+    // Runs every candidate on the same sample, one band of it all. The scalar output is the
+    // reference: a candidate whose output differs, or that throws (ConvolveOp has no fallback
+    // when the native imaging library is missing), is dropped. A candidate more than ten times
+    // slower than the scalar kernel stops being timed after its first timed run.
+    private static Backend fastest(PixelFilter filter, FilterSettings settings, List<Backend> candidates) {
+        BufferedImage image = new BufferedImage(SAMPLE_SIZE, SAMPLE_SIZE, BufferedImage.TYPE_INT_RGB);
+        PixelBuffer src = PixelBuffer.of(image);
+        PixelBuffer dst = filter.isInPlaceSafe() ? src : PixelBuffer.wrap(new int[src.data.length], src);
+        int[] sample = new int[src.data.length];
+        Random random = new Random(42);
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = random.nextInt() & src.storeMask;
+        }
+        int[] reference = null;
+        Map<Backend, Long> timings = new EnumMap<>(Backend.class);
+        for (Backend backend : candidates) {
+            Kernel kernel = backendKernel(backend, filter, settings);
+            long best = Long.MAX_VALUE;
+            try {
+                for (int run = 0; run < WARMUP_RUNS + TIMED_RUNS; run++) {
+                    System.arraycopy(sample, 0, src.data, 0, sample.length);
+                    long start = System.nanoTime();
+                    kernel.apply(src, dst, 0, src.height);
+                    if (run >= WARMUP_RUNS) {
+                        best = Math.min(best, System.nanoTime() - start);
+                        if (backend != Backend.SCALAR && best > 10 * timings.get(Backend.SCALAR)) {
+                            break;
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                if (backend == Backend.SCALAR) {
+                    throw e;
+                }
+                continue;
+            }
+            if (reference == null) {
+                reference = dst.data.clone();
+            } else if (!Arrays.equals(reference, dst.data)) {
+                continue;
+            }
+            timings.put(backend, best);
+        }
+        TIMINGS.put(filter.getName(), timings);
+        Backend fastest = Backend.SCALAR;
+        for (Map.Entry<Backend, Long> timing : timings.entrySet()) {
+            if (timing.getValue() < timings.get(fastest)) {
+                fastest = timing.getKey();
+            }
+        }
+        return fastest;
+    }
+
+    // The backend each calibrated filter runs on, with the times of the backends it was
+    // chosen from, e.g. "Negative: java2d (scalar 0.21 ms, java2d 0.09 ms)".
+    public static List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        for (String name : FilterRegistry.getNames()) {
+            Backend chosen = CHOSEN.get(name);
+            if (chosen == null) {
+                continue;
+            }
+            StringBuilder line = new StringBuilder(name + ": " + chosen.name().toLowerCase(Locale.ROOT));
+            Map<Backend, Long> timings = TIMINGS.get(name);
+            if (timings != null) {
+                List<String> times = new ArrayList<>();
+                for (Map.Entry<Backend, Long> timing : timings.entrySet()) {
+                    times.add(String.format(Locale.ROOT, "%s %.2f ms",
+                            timing.getKey().name().toLowerCase(Locale.ROOT), timing.getValue() / 1e6));
+                }
+                line.append(" (").append(String.join(", ", times)).append(')');
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,309 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Filter names in order, each with the parameter values it runs with. Chains built from names
+// alone use every filter's defaults.
+public class FilterChain {
+    private final List<String> filters;
+    private final List<FilterSettings> settings;
+    private final double scale;
+
+    public FilterChain(List<String> filters) {
+        this(filters, defaults(filters), 1.0);
+    }
+
+    private FilterChain(List<String> filters, List<FilterSettings> settings, double scale) {
+        this.filters = Collections.unmodifiableList(new ArrayList<>(filters));
+        this.settings = Collections.unmodifiableList(new ArrayList<>(settings));
+        this.scale = scale;
+    }
+
+    private static List<FilterSettings> defaults(List<String> filters) {
+        List<FilterSettings> settings = new ArrayList<>();
+        for (String name : filters) {
+            PixelFilter filter = FilterRegistry.get(name);
+            settings.add(filter == null ? null : FilterSettings.defaults(filter));
+        }
+        return settings;
+    }
+
+    public static FilterChain of(String... filters) {
+        return new FilterChain(List.of(filters));
+    }
+
+    public static FilterChain of(String filter, FilterSettings settings) {
+        return new FilterChain(List.of(), List.of(), 1.0).then(filter, settings);
+    }
+
+    // This chain with one more filter at the end.
+    public FilterChain then(String filter, FilterSettings filterSettings) {
+        List<String> names = new ArrayList<>(filters);
+        List<FilterSettings> values = new ArrayList<>(settings);
+        names.add(filter);
+        values.add(filterSettings.atScale(1.0));
+        return new FilterChain(names, values, scale);
+    }
+
+    // Comma separated filters, each optionally followed by parameter values in parentheses,
+    // e.g. "Grayscale,Posterize(levels=6),Tint(color=#FF8000)".
+    public static FilterChain parse(String spec) {
+        FilterChain chain = new FilterChain(List.of(), List.of(), 1.0);
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= spec.length(); i++) {
+            char c = i < spec.length() ? spec.charAt(i) : ',';
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                String step = spec.substring(start, i).trim();
+                if (!step.isEmpty()) {
+                    chain = chain.parseStep(step);
+                }
+                start = i + 1;
+            }
+        }
+        return chain;
+    }
+
+    private FilterChain parseStep(String step) {
+        int open = step.indexOf('(');
+        String name = (open < 0 ? step : step.substring(0, open)).trim();
+        PixelFilter filter = FilterRegistry.get(name);
+        if (filter == null) {
+            // Unknown names are kept and skipped when the chain runs, as before.
+            List<String> names = new ArrayList<>(filters);
+            List<FilterSettings> values = new ArrayList<>(settings);
+            names.add(name);
+            values.add(null);
+            return new FilterChain(names, values, scale);
+        }
+        FilterSettings values = FilterSettings.defaults(filter);
+        if (open >= 0) {
+            String arguments = step.substring(open + 1, step.lastIndexOf(')'));
+            for (String argument : arguments.split(",")) {
+                if (argument.isBlank()) {
+                    continue;
+                }
+                int eq = argument.indexOf('=');
+                FilterParameter parameter = eq < 0 ? null : parameter(filter, argument.substring(0, eq).trim());
+                if (parameter == null) {
+                    throw new IllegalArgumentException("Unknown parameter for " + name + ": " + argument.trim());
+                }
+                values = values.with(parameter.getName(), parameter.clamp(parameter.parse(argument.substring(eq + 1).trim())));
+            }
+        }
+        return then(name, values);
+    }
+
+    private static FilterParameter parameter(PixelFilter filter, String name) {
+        for (FilterParameter parameter : filter.getParameters()) {
+            if (parameter.getName().equals(name)) {
+                return parameter;
+            }
+        }
+        return null;
+    }
+
+    public List<String> getFilters() {
+        return filters;
+    }
+
+    // The same chain for an image scale times the size of the one it is meant for, e.g. a
+    // reduced preview of a full-resolution edit.
+    public FilterChain atScale(double scale) {
+        return new FilterChain(filters, settings, scale);
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    public boolean isEmpty() {
+        return filters.isEmpty();
+    }
+
+    public void apply(BufferedImage image) {
+        apply(image, FilterProgress.NONE);
+    }
+
+    public void apply(BufferedImage image, FilterProgress progress) {
+        FilterMetrics.Sample sample = FilterMetrics.begin("applyFilter");
+        PixelBuffer p = PixelBuffer.of(image);
+        apply(p, progress);
+        p.commit();
+        FilterMetrics.end(sample, (long) p.width * p.height);
+    }
+
+    // Number of full passes over the rows apply() makes, for progress reporting.
+    public int passCount() {
+        int passes = 0;
+        boolean inRun = false;
+        boolean swapped = false;
+        for (int i = 0; i < filters.size(); i++) {
+            PixelFilter filter = FilterRegistry.get(filters.get(i));
+            if (filter == null) {
+                continue;
+            }
+            if (fusable(filter, settings(i))) {
+                if (!inRun) {
+                    passes++;
+                }
+                inRun = true;
+            } else {
+                passes += filter instanceof StatisticalFilter ? 2 : 1;
+                swapped ^= !filter.isInPlaceSafe();
+                inRun = false;
+            }
+        }
+        return swapped ? passes + 1 : passes;
+    }
+
+    // Consecutive filters with a per-pixel form are fused into one PointOp pass; the others
+    // end the run and are executed on their own. Filters that cannot run in place write into
+    // the other of two buffers, which then becomes the current one; the pixels are copied back
+    // into p only if the chain ends on the pooled buffer.
+    void apply(PixelBuffer p, FilterProgress progress) {
+        List<Integer> run = new ArrayList<>();
+        PixelBuffer current = p;
+        PixelBuffer spare = null;
+        try {
+            for (int i = 0; i < filters.size(); i++) {
+                PixelFilter filter = FilterRegistry.get(filters.get(i));
+                if (filter == null) {
+                    continue;
+                }
+                if (fusable(filter, settings(i))) {
+                    run.add(i);
+                    continue;
+                }
+                flush(current, run, progress);
+                if (filter.isInPlaceSafe()) {
+                    Filters.apply(current, filter, settings(i), progress);
+                } else {
+                    if (spare == null) {
+                        spare = RasterPool.scratch(p);
+                    }
+                    PixelBuffer target = current == p ? spare : p;
+                    Filters.applyInto(current, target, filter, settings(i), progress);
+                    current = target;
+                }
+            }
+            flush(current, run, progress);
+            if (current != p) {
+                PixelBuffer result = current;
+                Filters.forEachBand(p, 1, progress, (dst, y0, y1) -> Filters.copyRows(result, dst, y0, y1));
+            }
+        } finally {
+            if (spare != null) {
+                RasterPool.release(spare.data);
+            }
+        }
+    }
+
+    // The chain split the way apply() runs it: every run of fusable filters becomes one chain,
+    // every other filter a chain of its own.
+    List<FilterChain> passes() {
+        List<FilterChain> passes = new ArrayList<>();
+        List<String> run = new ArrayList<>();
+        List<FilterSettings> runSettings = new ArrayList<>();
+        for (int i = 0; i < filters.size(); i++) {
+            PixelFilter filter = FilterRegistry.get(filters.get(i));
+            if (filter == null) {
+                continue;
+            }
+            if (fusable(filter, settings(i))) {
+                run.add(filters.get(i));
+                runSettings.add(settings.get(i));
+                continue;
+            }
+            if (!run.isEmpty()) {
+                passes.add(new FilterChain(run, runSettings, scale));
+                run.clear();
+                runSettings.clear();
+            }
+            passes.add(new FilterChain(List.of(filters.get(i)), List.of(settings.get(i)), scale));
+        }
+        if (!run.isEmpty()) {
+            passes.add(new FilterChain(run, runSettings, scale));
+        }
+        return passes;
+    }
+
+    // True if every filter has a per-pixel form, so the chain can run on any piece of an image.
+    boolean isPointwise() {
+        for (int i = 0; i < filters.size(); i++) {
+            PixelFilter filter = FilterRegistry.get(filters.get(i));
+            if (filter != null && !fusable(filter, settings(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The values the filter at index runs with, at this chain's scale.
+    FilterSettings settings(int index) {
+        return settings.get(index).atScale(scale);
+    }
+
+    private static boolean fusable(PixelFilter filter, FilterSettings settings) {
+        return filter.getKind() == PixelFilter.Kind.POINTWISE && new PointOp().then(filter, settings);
+    }
+
+    private void flush(PixelBuffer p, List<Integer> run, FilterProgress progress) {
+        if (run.size() == 1) {
+            int i = run.get(0);
+            Filters.apply(p, FilterRegistry.get(filters.get(i)), settings(i), progress);
+        } else if (run.size() > 1) {
+            PointOp op = new PointOp();
+            for (int i : run) {
+                op.then(FilterRegistry.get(filters.get(i)), settings(i));
+            }
+            Filters.forEachBand(p, 1, progress, op::apply);
+        }
+        run.clear();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FilterChain && filters.equals(((FilterChain) o).filters)
+                && settings.equals(((FilterChain) o).settings) && scale == ((FilterChain) o).scale;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * filters.hashCode() + settings.hashCode()) + Double.hashCode(scale);
+    }
+
+    // Values that differ from the defaults are shown in the form parse() reads.
+    @Override
+    public String toString() {
+        return describe(" > ");
+    }
+
+    // The chain in the form parse reads back, e.g. for writing it to a session journal.
+    public String toSpec() {
+        return describe(",");
+    }
+
+    private String describe(String separator) {
+        List<String> steps = new ArrayList<>();
+        for (int i = 0; i < filters.size(); i++) {
+            PixelFilter filter = FilterRegistry.get(filters.get(i));
+            List<String> changed = new ArrayList<>();
+            if (filter != null) {
+                for (FilterParameter parameter : filter.getParameters()) {
+                    double value = settings.get(i).get(parameter.getName());
+                    if (value != parameter.getDefaultValue()) {
+                        changed.add(parameter.getName() + "=" + parameter.format(value));
+                    }
+                }
+            }
+            steps.add(changed.isEmpty() ? filters.get(i) : filters.get(i) + "(" + String.join(",", changed) + ")");
+        }
+        return String.join(separator, steps);
+    }
+}
@@ -0,0 +1,208 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.ObjectName;
+
+// Latency, throughput and allocation figures for filtering, snapshots and image I/O. Off by
+// default (-Dfilters.metrics=true or the MBean turn it on); while off, begin() returns null and
+// end() returns immediately. Every sample is also emitted as a JFR event.
+public class FilterMetrics implements FilterMetricsMBean {
+    private static final FilterMetrics INSTANCE = new FilterMetrics();
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // Bucket i counts samples that took [2^i, 2^(i+1)) microseconds.
+    private static final int BUCKETS = 32;
+
+    private static volatile boolean enabled = Boolean.getBoolean("filters.metrics");
+    private static volatile boolean overlayVisible;
+    private static volatile LongSupplier historyBytes = () -> 0;
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    public static class Sample {
+        final String operation;
+        final long startNanos;
+        final long startAllocated;
+        final FilterOperationEvent event;
+
+        Sample(String operation) {
+            this.operation = operation;
+            this.event = new FilterOperationEvent();
+            event.begin();
+            this.startAllocated = THREADS.getCurrentThreadAllocatedBytes();
+            this.startNanos = System.nanoTime();
+        }
+    }
+
+    private static class Stats {
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder pixels = new LongAdder();
+        final LongAdder allocated = new LongAdder();
+
+        double percentileMillis(double p) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += histogram.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= rank) {
+                    return (1L << (i + 1)) / 1000.0;
+                }
+            }
+            return (1L << BUCKETS) / 1000.0;
+        }
+    }
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName("FiltersApp:type=FilterMetrics"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static FilterMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public static Sample begin(String operation) {
+        return enabled ? new Sample(operation) : null;
+    }
+
+    public static void end(Sample sample, long pixels) {
+        if (sample == null) {
+            return;
+        }
+        long nanos = System.nanoTime() - sample.startNanos;
+        long allocated = THREADS.getCurrentThreadAllocatedBytes() - sample.startAllocated;
+        Stats s = INSTANCE.stats.computeIfAbsent(sample.operation, k -> new Stats());
+        long micros = Math.max(1, nanos / 1000);
+        s.histogram.incrementAndGet(Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros)));
+        s.count.increment();
+        s.nanos.add(nanos);
+        s.pixels.add(pixels);
+        s.allocated.add(allocated);
+
+        FilterOperationEvent event = sample.event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = sample.operation;
+            event.pixels = pixels;
+            event.allocatedBytes = allocated;
+            event.historyBytes = historyBytes.getAsLong();
+            event.commit();
+        }
+    }
+
+    public static void setHistoryFootprint(LongSupplier supplier) {
+        historyBytes = supplier;
+    }
+
+    public static boolean isOverlayVisible() {
+        return overlayVisible;
+    }
+
+    public static void setOverlayVisible(boolean visible) {
+        overlayVisible = visible;
+        if (visible) {
+            enabled = true;
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    @Override
+    public long getHistoryBytes() {
+        return historyBytes.getAsLong();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return ResultCache.getInstance().getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return ResultCache.getInstance().getMisses();
+    }
+
+    @Override
+    public long getCacheBytes() {
+        return ResultCache.getInstance().getMemoryBytes();
+    }
+
+    @Override
+    public String[] getOperations() {
+        return stats.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public long getCount(String operation) {
+        Stats s = stats.get(operation);
+        return s == null ? 0 : s.count.sum();
+    }
+
+    @Override
+    public double getPercentileMillis(String operation, double percentile) {
+        Stats s = stats.get(operation);
+        return s == null ? 0 : s.percentileMillis(percentile);
+    }
+
+    @Override
+    public double getMegapixelsPerSecond(String operation) {
+        Stats s = stats.get(operation);
+        long nanos = s == null ? 0 : s.nanos.sum();
+        return nanos == 0 ? 0 : s.pixels.sum() * 1000.0 / nanos;
+    }
+
+    @Override
+    public long getAllocatedBytesPerOperation(String operation) {
+        Stats s = stats.get(operation);
+        long count = s == null ? 0 : s.count.sum();
+        return count == 0 ? 0 : s.allocated.sum() / count;
+    }
+
+    @Override
+    public String[] getSummary() {
+        List<String> lines = new ArrayList<>();
+        for (String operation : stats.keySet().stream().sorted().toArray(String[]::new)) {
+            lines.add(String.format(Locale.ROOT, "%s: n=%d p50=%.1fms p99=%.1fms %.1f MP/s %.1f MB/op",
+                    operation, getCount(operation), getPercentileMillis(operation, 50),
+                    getPercentileMillis(operation, 99), getMegapixelsPerSecond(operation),
+                    getAllocatedBytesPerOperation(operation) / 1e6));
+        }
+        lines.add(String.format(Locale.ROOT, "undo/redo history: %.1f MB", getHistoryBytes() / 1e6));
+        ResultCache cache = ResultCache.getInstance();
+        lines.add(String.format(Locale.ROOT, "result cache: %d hits (%d from disk), %d misses, %.1f MB + %.1f MB on disk",
+                cache.getHits(), cache.getDiskHits(), cache.getMisses(), cache.getMemoryBytes() / 1e6,
+                cache.getDiskBytes() / 1e6));
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public void reset() {
+        stats.clear();
+    }
+}
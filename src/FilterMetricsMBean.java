@@ -0,0 +1,29 @@
+public interface FilterMetricsMBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getHistoryBytes();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheBytes();
+
+    String[] getOperations();
+
+    String[] getSummary();
+
+    long getCount(String operation);
+
+    // Upper bound of the power-of-two histogram bucket holding the percentile.
+    double getPercentileMillis(String operation, double percentile);
+
+    double getMegapixelsPerSecond(String operation);
+
+    // Allocated on the calling thread only; Filters pool workers are not included.
+    long getAllocatedBytesPerOperation(String operation);
+
+    void reset();
+}
@@ -0,0 +1,24 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("FiltersApp.Operation")
+@Label("Filter Operation")
+@Category("FiltersApp")
+public class FilterOperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+
+    @Label("Undo/Redo History")
+    @DataAmount
+    long historyBytes;
+}
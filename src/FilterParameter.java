@@ -0,0 +1,97 @@
+import java.util.List;
+import java.util.Locale;
+
+public class FilterParameter {
+    public enum Type {
+        INTEGER,
+        NUMBER,
+        // Packed 0xRRGGBB value.
+        COLOR,
+        // Index into getChoices(); chain specs name the choice.
+        CHOICE
+    }
+
+    private final String name;
+    private final Type type;
+    private final double min;
+    private final double max;
+    private final double defaultValue;
+    private final List<String> choices;
+
+    public FilterParameter(String name, Type type, double min, double max, double defaultValue) {
+        this(name, type, min, max, defaultValue, List.of());
+    }
+
+    private FilterParameter(String name, Type type, double min, double max, double defaultValue, List<String> choices) {
+        this.name = name;
+        this.type = type;
+        this.min = min;
+        this.max = max;
+        this.defaultValue = defaultValue;
+        this.choices = List.copyOf(choices);
+    }
+
+    public static FilterParameter color(String name, int defaultRgb) {
+        return new FilterParameter(name, Type.COLOR, 0, 0xFFFFFF, defaultRgb & 0xFFFFFF);
+    }
+
+    public static FilterParameter choice(String name, List<String> choices, int defaultIndex) {
+        return new FilterParameter(name, Type.CHOICE, 0, choices.size() - 1, defaultIndex, choices);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getDefaultValue() {
+        return defaultValue;
+    }
+
+    // The names of the values of a CHOICE parameter, in index order; empty for other types.
+    public List<String> getChoices() {
+        return choices;
+    }
+
+    public double clamp(double value) {
+        double clamped = Math.max(min, Math.min(max, value));
+        return type == Type.NUMBER ? clamped : Math.rint(clamped);
+    }
+
+    // The text form used in chain specs: colors as #RRGGBB, choices by name, integers without
+    // a fraction.
+    public String format(double value) {
+        switch (type) {
+            case COLOR:
+                return String.format("#%06X", (int) value);
+            case CHOICE:
+                return choices.get((int) value);
+            case INTEGER:
+                return Integer.toString((int) value);
+            default:
+                return Double.toString(value);
+        }
+    }
+
+    public double parse(String text) {
+        if (type == Type.COLOR) {
+            return Integer.parseInt(text.startsWith("#") ? text.substring(1) : text, 16);
+        }
+        if (type == Type.CHOICE && choices.contains(text.toLowerCase(Locale.ROOT))) {
+            return choices.indexOf(text.toLowerCase(Locale.ROOT));
+        }
+        // A choice may also be given by its index, as specs did before choices had names.
+        return Double.parseDouble(text);
+    }
+}
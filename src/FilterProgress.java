@@ -0,0 +1,18 @@
+// Lets a long running filter report finished rows and notice when its caller gave up on it.
+// Both methods are called from worker threads.
+public interface FilterProgress {
+    FilterProgress NONE = new FilterProgress() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void rowsCompleted(int rows) {
+        }
+    };
+
+    boolean isCancelled();
+
+    void rowsCompleted(int rows);
+}
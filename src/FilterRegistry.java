@@ -0,0 +1,25 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+// All PixelFilter implementations on the class path, in service file order.
+public class FilterRegistry {
+    private static final Map<String, PixelFilter> FILTERS = new LinkedHashMap<>();
+
+    static {
+        for (PixelFilter filter : ServiceLoader.load(PixelFilter.class)) {
+            FILTERS.putIfAbsent(filter.getName(), filter);
+        }
+    }
+
+    public static PixelFilter get(String name) {
+        return FILTERS.get(name);
+    }
+
+    public static List<String> getNames() {
+        return Collections.unmodifiableList(new ArrayList<>(FILTERS.keySet()));
+    }
+}
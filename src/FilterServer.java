@@ -0,0 +1,248 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+// Headless HTTP front end for the filters, bound to the loopback interface:
+//
+//   POST /filter?chain=Grayscale,Posterize(levels=6)[&region=x,y,w,h][&format=png][&quality=n]
+//        body: an image in any format ImageIO reads; response: the filtered image
+//   GET  /filters
+//        one line per filter with its parameters
+//
+// Every request runs on its own virtual thread. At most -Dserver.filters requests filter at
+// once, since each apply already spreads over all cores; at most -Dserver.queue are admitted
+// in total, and anything beyond that is turned away with 429 without its body being decoded.
+// The body is decoded as it arrives and the result is encoded straight into the response.
+public class FilterServer {
+    private static final int FILTER_SLOTS = Integer.getInteger("server.filters", 2);
+    private static final int QUEUE_SLOTS = Integer.getInteger("server.queue", 16);
+
+    private final Semaphore admitted = new Semaphore(QUEUE_SLOTS);
+    private final Semaphore filtering = new Semaphore(FILTER_SLOTS);
+    private final HttpServer server;
+
+    // Thrown for requests that cannot be served as sent; answered with 400.
+    private static class BadRequest extends Exception {
+        BadRequest(String message) {
+            super(message);
+        }
+    }
+
+    public FilterServer(int port) throws IOException {
+        // Cache streams in memory rather than in temporary files.
+        ImageIO.setUseCache(false);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/filter", this::handleFilter);
+        server.createContext("/filters", this::handleList);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8765;
+        FilterBackends.calibrateAll();
+        FilterBackends.describe().forEach(System.out::println);
+        FilterServer server = new FilterServer(port);
+        server.start();
+        System.out.printf(Locale.ROOT, "Serving filters on http://localhost:%d/filter (%d filtering, %d admitted)%n",
+                server.getPort(), FILTER_SLOTS, QUEUE_SLOTS);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handleList(HttpExchange exchange) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String name : FilterRegistry.getNames()) {
+            text.append(name);
+            for (FilterParameter parameter : FilterRegistry.get(name).getParameters()) {
+                if (parameter.getType() == FilterParameter.Type.CHOICE) {
+                    text.append(String.format(Locale.ROOT, " %s=%s (%s)", parameter.getName(),
+                            parameter.format(parameter.getDefaultValue()), String.join("|", parameter.getChoices())));
+                    continue;
+                }
+                text.append(String.format(Locale.ROOT, " %s=%s (%s..%s)", parameter.getName(),
+                        parameter.format(parameter.getDefaultValue()), parameter.format(parameter.getMin()),
+                        parameter.format(parameter.getMax())));
+            }
+            text.append('\n');
+        }
+        sendText(exchange, 200, text.toString());
+    }
+
+    private void handleFilter(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendText(exchange, 405, "POST an image to /filter\n");
+                return;
+            }
+            if (!admitted.tryAcquire()) {
+                // Discard the upload unread; answering before the client has sent it all would
+                // reset the connection rather than deliver the 429.
+                exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendText(exchange, 429, "Too many requests\n");
+                return;
+            }
+            try {
+                serve(exchange);
+            } catch (BadRequest e) {
+                sendText(exchange, 400, e.getMessage() + "\n");
+            } catch (IOException | RuntimeException e) {
+                // Once the image is being streamed the status is out; closing the exchange
+                // cuts the response short instead.
+                if (exchange.getResponseCode() == -1) {
+                    e.printStackTrace();
+                    sendText(exchange, 500, "Filtering failed: " + e.getMessage() + "\n");
+                }
+            } finally {
+                admitted.release();
+            }
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException, BadRequest {
+        FilterMetrics.Sample sample = FilterMetrics.begin("serveRequest");
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        FilterChain chain;
+        try {
+            chain = FilterChain.parse(query.getOrDefault("chain", ""));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequest(e.getMessage());
+        }
+        for (String name : chain.getFilters()) {
+            if (FilterRegistry.get(name) == null) {
+                throw new BadRequest("Unknown filter: " + name);
+            }
+        }
+        String format = query.getOrDefault("format", "png").toLowerCase(Locale.ROOT);
+        if (!format.equals("ppm") && !ImageIO.getImageWritersBySuffix(format).hasNext()) {
+            throw new BadRequest("Unsupported format: " + format);
+        }
+        int level = query.containsKey("quality") ? parseInt(query.get("quality"), "quality") : -1;
+
+        BufferedImage image = BatchProcessor.toIntRgb(decode(exchange.getRequestBody()));
+        Rectangle region = parseRegion(query.get("region"), image);
+
+        filtering.acquireUninterruptibly();
+        try {
+            chain.apply(image.getSubimage(region.x, region.y, region.width, region.height));
+        } finally {
+            filtering.release();
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", contentType(format));
+        exchange.sendResponseHeaders(200, 0);
+        ImageSaver.write(image, exchange.getResponseBody(), format, level);
+        FilterMetrics.end(sample, (long) region.width * region.height);
+    }
+
+    // The reader pulls from the request body as it decodes and may discard what it has read,
+    // so the encoded image is never held in memory as a whole.
+    private static BufferedImage decode(InputStream body) throws IOException, BadRequest {
+        try (ImageInputStream input = ImageIO.createImageInputStream(body)) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new BadRequest("The body is not an image ImageIO can read");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static Rectangle parseRegion(String spec, BufferedImage image) throws BadRequest {
+        Rectangle bounds = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+        if (spec == null) {
+            return bounds;
+        }
+        String[] parts = spec.split(",");
+        if (parts.length != 4) {
+            throw new BadRequest("region must be x,y,width,height");
+        }
+        Rectangle region = new Rectangle(parseInt(parts[0], "region"), parseInt(parts[1], "region"),
+                parseInt(parts[2], "region"), parseInt(parts[3], "region")).intersection(bounds);
+        if (region.isEmpty()) {
+            throw new BadRequest("region lies outside the " + image.getWidth() + "x" + image.getHeight() + " image");
+        }
+        return region;
+    }
+
+    private static int parseInt(String text, String name) throws BadRequest {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            throw new BadRequest(name + " is not a number: " + text);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String raw) {
+        Map<String, String> query = new HashMap<>();
+        if (raw == null) {
+            return query;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            query.put(key, value);
+        }
+        return query;
+    }
+
+    private static String contentType(String format) {
+        switch (format) {
+            case "jpg":
+            case "jpeg":
+                return "image/jpeg";
+            case "ppm":
+            case "pnm":
+                return "image/x-portable-pixmap";
+            case "tif":
+            case "tiff":
+                return "image/tiff";
+            default:
+                return "image/" + format;
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.awt.*;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Immutable parameter values for one filter invocation, plus the scale of the buffer relative
+// to the image the result is meant for (below 1 for reduced previews).
+public class FilterSettings {
+    private final Map<String, Double> values;
+    private final double scale;
+
+    private FilterSettings(Map<String, Double> values, double scale) {
+        this.values = Collections.unmodifiableMap(values);
+        this.scale = scale;
+    }
+
+    public static FilterSettings defaults(PixelFilter filter) {
+        Map<String, Double> values = new TreeMap<>();
+        for (FilterParameter parameter : filter.getParameters()) {
+            values.put(parameter.getName(), parameter.getDefaultValue());
+        }
+        return new FilterSettings(values, 1.0);
+    }
+
+    public FilterSettings with(String name, double value) {
+        Map<String, Double> copy = new TreeMap<>(values);
+        copy.put(name, value);
+        return new FilterSettings(copy, scale);
+    }
+
+    public FilterSettings atScale(double scale) {
+        return new FilterSettings(values, scale);
+    }
+
+    public Map<String, Double> getValues() {
+        return values;
+    }
+
+    public double get(String name) {
+        Double value = values.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("No parameter named " + name);
+        }
+        return value;
+    }
+
+    public int getInt(String name) {
+        return (int) get(name);
+    }
+
+    public Color getColor(String name) {
+        return new Color(getInt(name));
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FilterSettings && values.equals(((FilterSettings) o).values)
+                && scale == ((FilterSettings) o).scale;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * values.hashCode() + Double.hashCode(scale);
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+}
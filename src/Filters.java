@@ -1,190 +1,365 @@
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class Filters {
+    // Bands smaller than this are not worth handing to another worker.
+    private static final int MIN_BAND_PIXELS = 1 << 16;
+
+    private static int parallelism = Math.max(1, Integer.getInteger("filters.parallelism",
+            Runtime.getRuntime().availableProcessors()));
+    private static ForkJoinPool pool;
+
+    interface RowKernel {
+        void apply(PixelBuffer p, int y0, int y1);
+    }
+
+    public static synchronized void setParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + threads);
+        }
+        if (threads != parallelism && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        parallelism = threads;
+    }
+
+    public static synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
     public static void applyFilter(BufferedImage image, String filterName) {
-        switch (filterName) {
-            case "Black-White":
-                blackWhite(image);
-                break;
-            case "Grayscale":
-                grayscale(image);
-                break;
-            case "Posterize":
-                posterize(image);
-                break;
-            case "Tint":
-                tint(image, Color.CYAN);
-                break;
-            case "Color Shift Right":
-                colorShiftRight(image);
-                break;
-            case "Mirror":
-                mirror(image);
-                break;
-            case "Pixelate":
-                pixelate(image);
-                break;
-            case "Show Borders":
-                showBorders(image);
-                break;
-            case "Eliminate Red":
-                eliminateColor(image, 'R');
-                break;
-            case "Negative":
-                negative(image);
-                break;
+        FilterMetrics.Sample sample = FilterMetrics.begin("applyFilter");
+        PixelBuffer p = PixelBuffer.of(image);
+        applyFilter(p, filterName);
+        p.commit();
+        FilterMetrics.end(sample, (long) p.width * p.height);
+    }
+
+    static void applyFilter(PixelBuffer p, String filterName) {
+        applyFilter(p, filterName, FilterProgress.NONE);
+    }
+
+    static void applyFilter(PixelBuffer p, String filterName, FilterProgress progress) {
+        applyFilter(p, filterName, 1.0, progress);
+    }
+
+    // scale is the size of the buffer relative to the image the user sees the result on;
+    // size dependent filters adapt so a reduced preview looks like the full-resolution result.
+    // Names that are not registered are ignored.
+    static void applyFilter(PixelBuffer p, String filterName, double scale, FilterProgress progress) {
+        PixelFilter filter = FilterRegistry.get(filterName);
+        if (filter != null) {
+            apply(p, filter, FilterSettings.defaults(filter).atScale(scale), progress);
         }
     }
 
+    // Picks the execution strategy from the filter's traits: row bands, filtered in place or,
+    // for filters that read rows other bands write, into a separate buffer that is copied back
+    // once every band has finished. Each band runs on the backend FilterBackends picked for
+    // the filter. Statistical filters take two banded passes: one counts, the other maps every
+    // pixel through the tables the counts give.
+    static void apply(PixelBuffer p, PixelFilter filter, FilterSettings settings, FilterProgress progress) {
+        if (filter instanceof StatisticalFilter) {
+            PointOp op = new PointOp();
+            ((StatisticalFilter) filter).fuse(op, settings, Histogram.of(p, progress));
+            forEachBand(p, 1, progress, op::apply);
+            return;
+        }
+        int rowAlign = filter.getBandAlignment(settings);
+        if (filter.isInPlaceSafe()) {
+            FilterBackends.Kernel kernel = FilterBackends.kernel(filter, settings);
+            forEachBand(p, rowAlign, progress, (src, y0, y1) -> kernel.apply(src, src, y0, y1));
+            return;
+        }
+        PixelBuffer dst = RasterPool.scratch(p);
+        try {
+            applyInto(p, dst, filter, settings, progress);
+            forEachBand(p, 1, progress, (src, y0, y1) -> copyRows(dst, src, y0, y1));
+        } finally {
+            RasterPool.release(dst.data);
+        }
+    }
+
+    // One step of the source/destination ping-pong for filters that cannot run in place: every
+    // row of dst is written from src, which is left untouched.
+    static void applyInto(PixelBuffer src, PixelBuffer dst, PixelFilter filter, FilterSettings settings,
+                          FilterProgress progress) {
+        FilterBackends.Kernel kernel = FilterBackends.kernel(filter, settings);
+        forEachBand(src, filter.getBandAlignment(settings), progress, (p, y0, y1) -> kernel.apply(p, dst, y0, y1));
+    }
+
+    // Number of full passes over the rows apply makes, for progress reporting.
+    static int passCount(PixelFilter filter) {
+        return filter.isInPlaceSafe() && !(filter instanceof StatisticalFilter) ? 1 : 2;
+    }
+
     public static void blackWhite(BufferedImage image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb = image.getRGB(x, y);
+        run(image, "Black-White", null);
+    }
+
+    public static void grayscale(BufferedImage image) {
+        run(image, "Grayscale", null);
+    }
+
+    public static void posterize(BufferedImage image) {
+        run(image, "Posterize", null);
+    }
+
+    public static void tint(BufferedImage image, Color tint) {
+        run(image, "Tint", FilterSettings.defaults(FilterRegistry.get("Tint")).with("color", tint.getRGB() & 0xFFFFFF));
+    }
+
+    public static void colorShiftRight(BufferedImage image) {
+        run(image, "Color Shift Right", null);
+    }
+
+    public static void mirror(BufferedImage image) {
+        run(image, "Mirror", null);
+    }
+
+    public static void pixelate(BufferedImage image) {
+        run(image, "Pixelate", null);
+    }
+
+    public static void showBorders(BufferedImage image) {
+        run(image, "Show Borders", null);
+    }
+
+    // Only red has a registered filter; the other colours run the kernel directly.
+    public static void eliminateColor(BufferedImage image, char color) {
+        PixelBuffer p = PixelBuffer.of(image);
+        forEachBand(p, 1, FilterProgress.NONE, (src, y0, y1) -> eliminateColor(src, y0, y1, color));
+        p.commit();
+    }
+
+    public static void negative(BufferedImage image) {
+        run(image, "Negative", null);
+    }
+
+    // settings null means the filter's defaults.
+    private static void run(BufferedImage image, String filterName, FilterSettings settings) {
+        PixelFilter filter = FilterRegistry.get(filterName);
+        PixelBuffer p = PixelBuffer.of(image);
+        apply(p, filter, settings != null ? settings : FilterSettings.defaults(filter), FilterProgress.NONE);
+        p.commit();
+    }
+
+    // Splits the rows into bands whose first row is a multiple of rowAlign, so block based
+    // kernels never straddle two workers. Bands touch disjoint rows, so the result does not
+    // depend on scheduling. Cancellation is checked before each band; a cancelled pass leaves
+    // the buffer partially filtered and throws CancellationException.
+    static void forEachBand(PixelBuffer p, int rowAlign, FilterProgress progress, RowKernel kernel) {
+        rowAlign = Math.max(1, Math.min(rowAlign, p.height));
+        int threads = getParallelism();
+        int rowsPerBand = Math.max(1, MIN_BAND_PIXELS / Math.max(1, p.width));
+        rowsPerBand = Math.max(rowsPerBand, p.height / (threads * 4));
+        rowsPerBand = (rowsPerBand + rowAlign - 1) / rowAlign * rowAlign;
+        if (threads == 1 || p.height <= rowsPerBand) {
+            for (int y = 0; y < p.height && !progress.isCancelled(); y += rowsPerBand) {
+                int end = Math.min(p.height, y + rowsPerBand);
+                kernel.apply(p, y, end);
+                progress.rowsCompleted(end - y);
+            }
+        } else {
+            pool().invoke(new BandTask(p, kernel, progress, 0, p.height, rowsPerBand));
+        }
+        if (progress.isCancelled()) {
+            throw new CancellationException();
+        }
+    }
+
+    private static class BandTask extends RecursiveAction {
+        private final PixelBuffer p;
+        private final RowKernel kernel;
+        private final FilterProgress progress;
+        private final int y0;
+        private final int y1;
+        private final int rowsPerBand;
+
+        BandTask(PixelBuffer p, RowKernel kernel, FilterProgress progress, int y0, int y1, int rowsPerBand) {
+            this.p = p;
+            this.kernel = kernel;
+            this.progress = progress;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.rowsPerBand = rowsPerBand;
+        }
+
+        @Override
+        protected void compute() {
+            int bands = (y1 - y0 + rowsPerBand - 1) / rowsPerBand;
+            if (bands <= 1) {
+                if (!progress.isCancelled()) {
+                    kernel.apply(p, y0, y1);
+                    progress.rowsCompleted(y1 - y0);
+                }
+                return;
+            }
+            int mid = y0 + bands / 2 * rowsPerBand;
+            invokeAll(new BandTask(p, kernel, progress, y0, mid, rowsPerBand),
+                    new BandTask(p, kernel, progress, mid, y1, rowsPerBand));
+        }
+    }
+
+    static void blackWhite(PixelBuffer p, int y0, int y1) {
+        int[] data = p.data;
+        int white = Color.WHITE.getRGB() & p.storeMask;
+        int black = Color.BLACK.getRGB() & p.storeMask;
+        for (int y = y0; y < y1; y++) {
+            int i = p.index(0, y);
+            int end = i + p.width;
+            for (; i < end; i++) {
+                int rgb = data[i];
                 int r = (rgb >> 16) & 0xFF;
                 int g = (rgb >> 8) & 0xFF;
                 int b = rgb & 0xFF;
                 int gray = (r + g + b) / 3;
-                if (gray > 127) {
-                    image.setRGB(x, y, Color.WHITE.getRGB());
-                } else {
-                    image.setRGB(x, y, Color.BLACK.getRGB());
-                }
+                data[i] = gray > 127 ? white : black;
             }
         }
     }
 
-    public static void grayscale(BufferedImage image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb = image.getRGB(x, y);
+    static void grayscale(PixelBuffer p, int y0, int y1) {
+        int[] data = p.data;
+        for (int y = y0; y < y1; y++) {
+            int i = p.index(0, y);
+            int end = i + p.width;
+            for (; i < end; i++) {
+                int rgb = data[i];
                 int r = (rgb >> 16) & 0xFF;
                 int g = (rgb >> 8) & 0xFF;
                 int b = rgb & 0xFF;
                 int gray = (r + g + b) / 3;
-                int newRgb = (gray << 16) | (gray << 8) | gray;
-                image.setRGB(x, y, newRgb);
+                data[i] = (gray << 16) | (gray << 8) | gray;
             }
         }
     }
 
-    public static void posterize(BufferedImage image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int levels = 4;
+    static void posterize(PixelBuffer p, int y0, int y1, int levels) {
+        int[] data = p.data;
+        int step = 256 / levels;
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb = image.getRGB(x, y);
+        for (int y = y0; y < y1; y++) {
+            int i = p.index(0, y);
+            int end = i + p.width;
+            for (; i < end; i++) {
+                int rgb = data[i];
                 int r = (rgb >> 16) & 0xFF;
                 int g = (rgb >> 8) & 0xFF;
                 int b = rgb & 0xFF;
 
-                r = (r / (256 / levels)) * (256 / levels);
-                g = (g / (256 / levels)) * (256 / levels);
-                b = (b / (256 / levels)) * (256 / levels);
+                r = (r / step) * step;
+                g = (g / step) * step;
+                b = (b / step) * step;
 
-                int newRgb = (r << 16) | (g << 8) | b;
-                image.setRGB(x, y, newRgb);
+                data[i] = (r << 16) | (g << 8) | b;
             }
         }
     }
 
-    public static void tint(BufferedImage image, Color tint) {
-        int width = image.getWidth();
-        int height = image.getHeight();
+    static void tint(PixelBuffer p, int y0, int y1, Color tint) {
+        int[] data = p.data;
         int tintRgb = tint.getRGB() & 0xFFFFFF;
-
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb = image.getRGB(x, y);
+        int tr = (tintRgb >> 16) & 0xFF;
+        int tg = (tintRgb >> 8) & 0xFF;
+        int tb = tintRgb & 0xFF;
+
+        for (int y = y0; y < y1; y++) {
+            int i = p.index(0, y);
+            int end = i + p.width;
+            for (; i < end; i++) {
+                int rgb = data[i];
                 int r = (rgb >> 16) & 0xFF;
                 int g = (rgb >> 8) & 0xFF;
                 int b = rgb & 0xFF;
 
-                r = Math.min((r + ((tintRgb >> 16) & 0xFF)) / 2, 255);
-                g = Math.min((g + ((tintRgb >> 8) & 0xFF)) / 2, 255);
-                b = Math.min((b + (tintRgb & 0xFF)) / 2, 255);
+                r = Math.min((r + tr) / 2, 255);
+                g = Math.min((g + tg) / 2, 255);
+                b = Math.min((b + tb) / 2, 255);
 
-                int newRgb = (r << 16) | (g << 8) | b;
-                image.setRGB(x, y, newRgb);
+                data[i] = (r << 16) | (g << 8) | b;
             }
         }
     }
 
-    public static void colorShiftRight(BufferedImage image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb = image.getRGB(x, y);
+    static void colorShiftRight(PixelBuffer p, int y0, int y1) {
+        int[] data = p.data;
+        for (int y = y0; y < y1; y++) {
+            int i = p.index(0, y);
+            int end = i + p.width;
+            for (; i < end; i++) {
+                int rgb = data[i];
                 int r = (rgb >> 16) & 0xFF;
                 int g = (rgb >> 8) & 0xFF;
                 int b = rgb & 0xFF;
 
-                int newRgb = (b << 16) | (r << 8) | g;
-                image.setRGB(x, y, newRgb);
+                data[i] = (b << 16) | (r << 8) | g;
             }
         }
     }
 
-    public static void mirror(BufferedImage image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width / 2; x++) {
-                int leftRgb = image.getRGB(x, y);
-                int rightRgb = image.getRGB(width - 1 - x, y);
-                image.setRGB(x, y, rightRgb);
-                image.setRGB(width - 1 - x, y, leftRgb);
+    static void mirror(PixelBuffer p, int y0, int y1) {
+        int[] data = p.data;
+        for (int y = y0; y < y1; y++) {
+            int left = p.index(0, y);
+            int right = left + p.width - 1;
+            while (left < right) {
+                int tmp = data[left];
+                data[left++] = data[right];
+                data[right--] = tmp;
             }
         }
     }
 
-    public static void pixelate(BufferedImage image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int pixelSize = 10; // Size of each pixel block
-
-        for (int y = 0; y < height; y += pixelSize) {
-            for (int x = 0; x < width; x += pixelSize) {
-                int rgb = image.getRGB(x, y);
-
-                for (int dy = 0; dy < pixelSize; dy++) {
-                    for (int dx = 0; dx < pixelSize; dx++) {
-                        if (x + dx < width && y + dy < height) {
-                            image.setRGB(x + dx, y + dy, rgb);
-                        }
-                    }
+    // Reads src and writes every pixel of rows [y0, y1) of dst. The outermost ring has no
+    // right or lower neighbour: opaque images get a black frame there, while images with alpha
+    // keep their original pixels.
+    static void showBorders(PixelBuffer src, PixelBuffer dst, int y0, int y1, double threshold) {
+        int[] data = src.data;
+        int width = src.width;
+        int height = src.height;
+        int white = Color.WHITE.getRGB() & src.storeMask;
+        int black = Color.BLACK.getRGB() & src.storeMask;
+
+        for (int y = y0; y < y1; y++) {
+            int i = src.index(0, y);
+            int o = dst.index(0, y);
+            if (y == 0 || y == height - 1 || width < 3) {
+                if (src.hasAlpha) {
+                    System.arraycopy(data, i, dst.data, o, width);
+                } else {
+                    Arrays.fill(dst.data, o, o + width, 0);
                 }
+                continue;
             }
-        }
-    }
-
-    public static void showBorders(BufferedImage image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int threshold = 10;
-
-        BufferedImage edges = new BufferedImage(width, height, image.getType());
-        for (int y = 1; y < height - 1; y++) {
-            for (int x = 1; x < width - 1; x++) {
-                int rgb = image.getRGB(x, y);
+            dst.data[o] = src.hasAlpha ? data[i] : 0;
+            dst.data[o + width - 1] = src.hasAlpha ? data[i + width - 1] : 0;
+            i++;
+            o++;
+            for (int x = 1; x < width - 1; x++, i++, o++) {
+                int rgb = data[i];
                 int r = (rgb >> 16) & 0xFF;
                 int g = (rgb >> 8) & 0xFF;
                 int b = rgb & 0xFF;
 
-                int rgbRight = image.getRGB(x + 1, y);
+                int rgbRight = data[i + 1];
                 int rRight = (rgbRight >> 16) & 0xFF;
                 int gRight = (rgbRight >> 8) & 0xFF;
                 int bRight = rgbRight & 0xFF;
 
-                int rgbDown = image.getRGB(x, y + 1);
+                int rgbDown = data[i + src.stride];
                 int rDown = (rgbDown >> 16) & 0xFF;
                 int gDown = (rgbDown >> 8) & 0xFF;
                 int bDown = rgbDown & 0xFF;
@@ -192,57 +367,44 @@ public class Filters {
                 int edgeColor = Math.abs(r - rRight) + Math.abs(g - gRight) + Math.abs(b - bRight) +
                         Math.abs(r - rDown) + Math.abs(g - gDown) + Math.abs(b - bDown);
 
-                if (edgeColor > threshold) {
-                    edges.setRGB(x, y, Color.BLACK.getRGB());
-                } else {
-                    edges.setRGB(x, y, Color.WHITE.getRGB());
-                }
+                dst.data[o] = edgeColor > threshold ? black : white;
             }
         }
-
-        Graphics g = image.getGraphics();
-        g.drawImage(edges, 0, 0, null);
-        g.dispose();
     }
 
-    public static void eliminateColor(BufferedImage image, char color) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb = image.getRGB(x, y);
-                int r = (rgb >> 16) & 0xFF;
-                int g = (rgb >> 8) & 0xFF;
-                int b = rgb & 0xFF;
+    static void copyRows(PixelBuffer from, PixelBuffer to, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            System.arraycopy(from.data, from.index(0, y), to.data, to.index(0, y), to.width);
+        }
+    }
 
-                if (color == 'R') {
-                    r = 0;
-                } else if (color == 'G') {
-                    g = 0;
-                } else if (color == 'B') {
-                    b = 0;
-                }
+    static void eliminateColor(PixelBuffer p, int y0, int y1, char color) {
+        int[] data = p.data;
+        int mask = 0xFFFFFF;
+        if (color == 'R') {
+            mask = 0x00FFFF;
+        } else if (color == 'G') {
+            mask = 0xFF00FF;
+        } else if (color == 'B') {
+            mask = 0xFFFF00;
+        }
 
-                int newRgb = (r << 16) | (g << 8) | b;
-                image.setRGB(x, y, newRgb);
+        for (int y = y0; y < y1; y++) {
+            int i = p.index(0, y);
+            int end = i + p.width;
+            for (; i < end; i++) {
+                data[i] &= mask;
             }
         }
     }
 
-    public static void negative(BufferedImage image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb = image.getRGB(x, y);
-                int r = (rgb >> 16) & 0xFF;
-                int g = (rgb >> 8) & 0xFF;
-                int b = rgb & 0xFF;
-
-                int newRgb = ((255 - r) << 16) | ((255 - g) << 8) | (255 - b);
-                image.setRGB(x, y, newRgb);
+    static void negative(PixelBuffer p, int y0, int y1) {
+        int[] data = p.data;
+        for (int y = y0; y < y1; y++) {
+            int i = p.index(0, y);
+            int end = i + p.width;
+            for (; i < end; i++) {
+                data[i] = ~data[i] & 0xFFFFFF;
             }
         }
     }
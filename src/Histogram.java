@@ -0,0 +1,151 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+// Counts of the red, green, blue and luminance values of an image or part of one. Luminance
+// is the (r + g + b) / 3 gray the other filters use. Counting splits the rows into bands like
+// every other pass; each band counts into arrays of its own, which are merged once it is done,
+// so workers never share a counter.
+public class Histogram {
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+    public static final int LUMINANCE = 3;
+
+    private final long[] counts = new long[4 * 256];
+    private long total;
+
+    public static Histogram of(BufferedImage image, Rectangle region) {
+        return of(PixelBuffer.of(image.getSubimage(region.x, region.y, region.width, region.height)),
+                FilterProgress.NONE);
+    }
+
+    static Histogram of(PixelBuffer p, FilterProgress progress) {
+        Histogram histogram = new Histogram();
+        Filters.forEachBand(p, 1, progress, (src, y0, y1) -> {
+            Histogram band = count(src, y0, y1);
+            synchronized (histogram) {
+                histogram.add(band);
+            }
+        });
+        return histogram;
+    }
+
+    // Rows [y0, y1) of p, counted on the calling thread.
+    static Histogram count(PixelBuffer p, int y0, int y1) {
+        int[] data = p.data;
+        int[] local = new int[4 * 256];
+        for (int y = y0; y < y1; y++) {
+            int i = p.index(0, y);
+            int end = i + p.width;
+            for (; i < end; i++) {
+                int rgb = data[i];
+                int r = (rgb >> 16) & 0xFF;
+                int g = (rgb >> 8) & 0xFF;
+                int b = rgb & 0xFF;
+                local[r]++;
+                local[256 + g]++;
+                local[512 + b]++;
+                local[768 + (r + g + b) / 3]++;
+            }
+        }
+        Histogram histogram = new Histogram();
+        for (int v = 0; v < local.length; v++) {
+            histogram.counts[v] = local[v];
+        }
+        histogram.total = (long) p.width * (y1 - y0);
+        return histogram;
+    }
+
+    public void add(Histogram other) {
+        for (int v = 0; v < counts.length; v++) {
+            counts[v] += other.counts[v];
+        }
+        total += other.total;
+    }
+
+    // Takes out the pixels of other, which must have been counted in this histogram, e.g. a
+    // region about to be overwritten.
+    public void subtract(Histogram other) {
+        for (int v = 0; v < counts.length; v++) {
+            counts[v] -= other.counts[v];
+        }
+        total -= other.total;
+    }
+
+    public long getCount(int channel, int value) {
+        return counts[channel * 256 + value];
+    }
+
+    // Number of pixels counted; every channel sums to it.
+    public long getTotal() {
+        return total;
+    }
+
+    public long getMaxCount(int channel) {
+        long max = 0;
+        for (int v = 0; v < 256; v++) {
+            max = Math.max(max, counts[channel * 256 + v]);
+        }
+        return max;
+    }
+
+    // The smallest value with at least fraction of the pixels at or below it.
+    public int percentile(int channel, double fraction) {
+        long target = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int v = 0; v < 256; v++) {
+            seen += counts[channel * 256 + v];
+            if (seen >= Math.max(1, target)) {
+                return v;
+            }
+        }
+        return 255;
+    }
+
+    // Maps values so their cumulative counts become as even as 256 levels allow: the first
+    // occupied value goes to 0 and the last to 255.
+    public int[] equalization(int channel) {
+        int[] table = new int[256];
+        long first = 0;
+        for (int v = 0; v < 256 && first == 0; v++) {
+            first = counts[channel * 256 + v];
+        }
+        long cumulative = 0;
+        for (int v = 0; v < 256; v++) {
+            cumulative += counts[channel * 256 + v];
+            table[v] = total == first ? v
+                    : (int) Math.max(0, Math.round((cumulative - first) * 255.0 / (total - first)));
+        }
+        return table;
+    }
+
+    // Otsu's threshold: the value t that maximizes the between-class variance of the pixels at
+    // or below t and those above it.
+    public int otsuThreshold(int channel) {
+        double sum = 0;
+        for (int v = 0; v < 256; v++) {
+            sum += (double) v * counts[channel * 256 + v];
+        }
+        long below = 0;
+        double sumBelow = 0;
+        double best = -1;
+        int threshold = 127;
+        for (int t = 0; t < 255; t++) {
+            long count = counts[channel * 256 + t];
+            below += count;
+            sumBelow += (double) t * count;
+            long above = total - below;
+            if (below == 0 || above == 0) {
+                continue;
+            }
+            double meanBelow = sumBelow / below;
+            double meanAbove = (sum - sumBelow) / above;
+            double variance = (double) below * above * (meanBelow - meanAbove) * (meanBelow - meanAbove);
+            if (variance > best) {
+                best = variance;
+                threshold = t;
+            }
+        }
+        return threshold;
+    }
+}
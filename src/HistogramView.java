@@ -0,0 +1,46 @@
+import javax.swing.*;
+import java.awt.*;
+
+// The histogram of the selection, or of the whole image: luminance as a filled area with the
+// red, green and blue counts drawn over it, all scaled to the tallest luminance bar.
+public class HistogramView extends JComponent {
+    private static final Color[] CHANNEL_COLORS = {
+            new Color(220, 40, 40, 180), new Color(40, 170, 40, 180), new Color(40, 80, 220, 180)};
+
+    private final ImagePanel imagePanel;
+
+    public HistogramView(ImagePanel imagePanel) {
+        this.imagePanel = imagePanel;
+        setPreferredSize(new Dimension(130, 50));
+        setToolTipText("Histogram of the selection, or of the whole image");
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        int width = getWidth();
+        int height = getHeight();
+        g.setColor(Color.DARK_GRAY);
+        g.fillRect(0, 0, width, height);
+        Histogram histogram = imagePanel.getHistogram();
+        if (histogram == null || histogram.getTotal() == 0) {
+            return;
+        }
+        double scale = (height - 2) / (double) Math.max(1, histogram.getMaxCount(Histogram.LUMINANCE));
+        g.setColor(Color.LIGHT_GRAY);
+        for (int x = 0; x < width; x++) {
+            int bar = (int) Math.min(height, Math.round(histogram.getCount(Histogram.LUMINANCE, x * 256 / width) * scale));
+            g.drawLine(x, height - bar, x, height);
+        }
+        for (int c = Histogram.RED; c <= Histogram.BLUE; c++) {
+            g.setColor(CHANNEL_COLORS[c]);
+            int lastY = height;
+            for (int x = 0; x < width; x++) {
+                int y = height - (int) Math.min(height, Math.round(histogram.getCount(c, x * 256 / width) * scale));
+                if (x > 0) {
+                    g.drawLine(x - 1, lastY, x, y);
+                }
+                lastY = y;
+            }
+        }
+    }
+}
@@ -3,12 +3,27 @@ import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.Stack;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.imageio.ImageIO;
 
 public class ImagePanel extends JPanel {
+    // Files with more pixels than this are opened as a TiledImage and edited through a proxy.
+    static final long TILED_PIXELS = Long.getLong("tiles.threshold.mp", 100) * 1_000_000;
+    // Quiet time after the last parameter change before a preview is rendered.
+    private static final int PREVIEW_DELAY_MS = 120;
+    static final long HISTORY_BYTES = Long.getLong("history.budget.mb", 512) * 1024 * 1024;
+
     private BufferedImage image;
     private BufferedImage originalImage;
     private ControlPanel controlPanel;
@@ -16,8 +31,33 @@ public class ImagePanel extends JPanel {
     private int pointCount;
     private boolean drawBorder;
     private int imageX, imageY, drawWidth, drawHeight;
-    Stack<BufferedImage> undoStack;
-    Stack<BufferedImage> redoStack;
+    EditHistory history;
+    private FilterJob currentJob;
+    private FilterJob pendingJob;
+    private final DisplayCache displayCache = new DisplayCache();
+    private Rectangle paintedOverlay;
+    private ProxySession proxySession;
+    private boolean proxyEditing;
+    private ProxyExitJob proxyExitJob;
+    private LoadJob loadJob;
+    private SaveJob saveJob;
+    private int jpegQuality = 75;
+    private int pngLevel = 4;
+    private final Timer previewTimer = new Timer(PREVIEW_DELAY_MS, e -> startPreview());
+    private FilterChain previewChain;
+    private PreviewJob previewJob;
+    private BufferedImage preview;
+    private Rectangle previewBounds;
+    private final ThumbnailStrip thumbnailStrip;
+    private Workspace workspace;
+    // The workspace file on screen, or null for an image opened on its own.
+    private File currentFile;
+    // Counts of histogrammed, which edits keep current by recounting the region they rewrite;
+    // any other image is counted afresh when asked for.
+    private Histogram histogram;
+    private BufferedImage histogrammed;
+    private Histogram selectionHistogram;
+    private Rectangle selectionHistogramRegion;
 
     public ImagePanel(JFrame frame) {
         setLayout(new BorderLayout());
@@ -28,13 +68,15 @@ public class ImagePanel extends JPanel {
         selectedPoints = new Point[4];
         pointCount = 0;
         drawBorder = false;
-        undoStack = new Stack<>();
-        redoStack = new Stack<>();
+        history = new EditHistory(HISTORY_BYTES);
+        FilterMetrics.setHistoryFootprint(() -> history.getMemoryBytes());
+        thumbnailStrip = new ThumbnailStrip(this);
+        previewTimer.setRepeats(false);
 
         addMouseListener(new MouseAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
-                if (image == null) {
+                if (image == null || loadJob != null) {
                     return;
                 }
                 if (SwingUtilities.isRightMouseButton(e)) {
@@ -42,7 +84,7 @@ public class ImagePanel extends JPanel {
                         pointCount--;
                         selectedPoints[pointCount] = null;
                         drawBorder = false;
-                        repaint();
+                        repaintOverlay();
                     }
                 } else if (SwingUtilities.isLeftMouseButton(e)) {
                     if (pointCount == 4) {
@@ -56,9 +98,14 @@ public class ImagePanel extends JPanel {
                             drawBorder = true;
                         }
                     }
-                    repaint();
+                    repaintOverlay();
+                }
+                if (previewChain != null) {
+                    preview = null;
+                    previewFilter(previewChain);
                 }
                 controlPanel.updateApplyButtonState(pointCount);
+                controlPanel.updateHistogram();
             }
         });
     }
@@ -73,30 +120,295 @@ public class ImagePanel extends JPanel {
         fileChooser.setAcceptAllFileFilterUsed(false);
         fileChooser.addChoosableFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Image files", ImageIO.getReaderFileSuffixes()));
         if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            leaveImage();
+            currentFile = null;
+            thumbnailStrip.setSelected(null);
+            startLoad(fileChooser.getSelectedFile(), null, null);
+        }
+    }
+
+    public ThumbnailStrip getThumbnailStrip() {
+        return thumbnailStrip;
+    }
+
+    // Opens the images of a folder in the thumbnail strip and shows the first one.
+    public void openFolder() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        Workspace opened = new Workspace(fileChooser.getSelectedFile());
+        if (opened.getFiles().isEmpty()) {
+            opened.close();
+            JOptionPane.showMessageDialog(this, "No images in " + fileChooser.getSelectedFile());
+            return;
+        }
+        leaveImage();
+        currentFile = null;
+        if (workspace != null) {
+            workspace.close();
+        }
+        workspace = opened;
+        thumbnailStrip.setWorkspace(workspace);
+        showWorkspaceImage(workspace.getFiles().get(0));
+        thumbnailStrip.setSelected(currentFile);
+    }
+
+    // Shows an image of the workspace. One the workspace holds, decoded ahead of time or shown
+    // before, appears at once with its history; any other is loaded like a single file, from
+    // the prefetch if one is already decoding it.
+    public void showWorkspaceImage(File file) {
+        if (workspace == null || file.equals(currentFile)) {
+            return;
+        }
+        leaveImage();
+        currentFile = file;
+        Future<Workspace.Entry> prefetched = workspace.claim(file);
+        Workspace.Entry entry = workspace.take(file);
+        workspace.prefetchAround(file);
+        if (entry == null || entry.isSuspended()) {
+            startLoad(file, entry == null ? null : entry.history, prefetched);
+            return;
+        }
+        controlPanel.setLoading(false);
+        image = entry.image;
+        originalImage = entry.original;
+        if (entry.history != null) {
+            history = entry.history;
+            resetSelection();
+        } else {
+            resetStates();
+            history.setJournal(new SessionJournal(file));
+        }
+        if (proxyEditing) {
+            startProxySession();
+        }
+        controlPanel.enableControls(true);
+        repaint();
+    }
+
+    // Drops whatever is still loading or rendering for the image on screen. A workspace image
+    // that finished loading goes back into the workspace with its history; images edited
+    // through a proxy are not kept.
+    private void leaveImage() {
+        clearPreview();
+        if (loadJob != null) {
+            loadJob.abort();
+            loadJob = null;
+        } else if (workspace != null && currentFile != null && originalImage != null && proxySession == null) {
+            workspace.park(new Workspace.Entry(currentFile, image, originalImage, history));
+            history = new EditHistory(HISTORY_BYTES);
+        }
+        if (proxyExitJob != null) {
+            proxyExitJob.cancel(false);
+            proxyExitJob = null;
+        }
+        if (proxySession != null) {
+            // A save still rendering from the session closes it when it is done.
+            if (saveJob != null && saveJob.session == proxySession) {
+                saveJob.closeSession = true;
+            } else {
+                proxySession.close();
+            }
+            proxySession = null;
+        }
+    }
+
+    // Picking another file while one is still decoding abandons the first load. resumed is the
+    // suspended history of a workspace image, whose edits are replayed once it is decoded.
+    private void startLoad(File file, EditHistory resumed, Future<Workspace.Entry> prefetched) {
+        int maxWidth = drawWidth > 0 ? drawWidth : Math.max(getWidth(), 1280);
+        int maxHeight = drawHeight > 0 ? drawHeight : Math.max(getHeight(), 960);
+        loadJob = new LoadJob(file, maxWidth, maxHeight, resumed, prefetched);
+        controlPanel.enableControls(false);
+        controlPanel.setLoading(true);
+        loadJob.execute();
+    }
+
+    // Decodes a file off the EDT. The embedded thumbnail, if any, and a subsampled preview are
+    // published first so something is on screen almost at once, then the full image is
+    // decoded straight into an INT_RGB raster.
+    // Files above TILED_PIXELS stop after the preview, which becomes a tiled session's proxy.
+    // A workspace image already being prefetched is taken from the prefetch instead.
+    private class LoadJob extends SwingWorker<BufferedImage, BufferedImage> {
+        private final File file;
+        private final int maxWidth;
+        private final int maxHeight;
+        private final FilterMetrics.Sample sample = FilterMetrics.begin("loadImage");
+        private final Workspace owner = workspace;
+        private final Future<Workspace.Entry> prefetched;
+        private volatile EditHistory resumed;
+        private volatile BufferedImage original;
+        private volatile TiledImage source;
+        private ProxySession tiledSession;
+
+        LoadJob(File file, int maxWidth, int maxHeight, EditHistory resumed, Future<Workspace.Entry> prefetched) {
+            this.file = file;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.resumed = resumed;
+            this.prefetched = prefetched;
+        }
+
+        @Override
+        protected BufferedImage doInBackground() throws IOException {
+            if (prefetched != null) {
+                try {
+                    Workspace.Entry entry = prefetched.get();
+                    if (entry != null) {
+                        resumed = entry.history;
+                        original = entry.original;
+                        return entry.image;
+                    }
+                } catch (InterruptedException | ExecutionException | CancellationException e) {
+                    // Decode it here instead.
+                }
+            }
+            TiledImage opened = TiledImage.open(file);
+            if (opened == null) {
+                throw new IOException("No reader for " + file);
+            }
+            source = opened;
             try {
-                File file = fileChooser.getSelectedFile();
-                BufferedImage newImage = ImageIO.read(file);
-                setImage(newImage);
-                originalImage = copyImage(newImage);
-                resetStates();
-                controlPanel.enableControls(true);
-                repaint();
-            } catch (IOException e) {
+                if (opened.getPixelCount() > TILED_PIXELS) {
+                    tiledSession = new ProxySession(opened, maxWidth, maxHeight);
+                    return tiledSession.createTiledProxy();
+                }
+                BufferedImage thumbnail = opened.readThumbnail();
+                if (thumbnail != null && !isCancelled()) {
+                    publish(thumbnail);
+                }
+                if (!isCancelled()) {
+                    publish(opened.readOverview(maxWidth, maxHeight));
+                }
+                BufferedImage loaded = opened.readAll();
+                if (isCancelled()) {
+                    return null;
+                }
+                if (resumed != null) {
+                    original = loaded;
+                    return resumed.resume(loaded);
+                }
+                EditHistory restored = new EditHistory(HISTORY_BYTES);
+                BufferedImage current = SessionJournal.restore(file, loaded, restored);
+                if (current != null) {
+                    resumed = restored;
+                    original = loaded;
+                    return current;
+                }
+                return loaded;
+            } finally {
+                if (tiledSession == null || isCancelled()) {
+                    opened.close();
+                }
+            }
+        }
+
+        // Loads that build on a workspace prefetch or replay a suspended history are not cut
+        // short; if they were left they go back to the workspace once done.
+        void abort() {
+            if (resumed != null || prefetched != null) {
+                return;
+            }
+            cancel(false);
+            TiledImage opened = source;
+            if (opened != null) {
+                opened.abort();
+            }
+        }
+
+        @Override
+        protected void process(List<BufferedImage> previews) {
+            if (loadJob != this || isCancelled()) {
+                return;
+            }
+            image = previews.get(previews.size() - 1);
+            pointCount = 0;
+            drawBorder = false;
+            selectedPoints = new Point[4];
+            repaint();
+        }
+
+        private void giveBack() {
+            try {
+                BufferedImage loaded = get();
+                if (tiledSession != null) {
+                    tiledSession.close();
+                } else if (loaded != null && original != null) {
+                    owner.park(new Workspace.Entry(file, loaded, original, resumed));
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                keepHistory();
+            }
+        }
+
+        // The edits of a workspace image survive a failed replay; they are tried again the
+        // next time it is shown.
+        private void keepHistory() {
+            if (resumed != null && owner != null) {
+                resumed.suspend();
+                owner.park(new Workspace.Entry(file, null, null, resumed));
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (loadJob != this) {
+                if (owner != null && !isCancelled()) {
+                    giveBack();
+                }
+                return;
+            }
+            loadJob = null;
+            controlPanel.setLoading(false);
+            image = null;
+            originalImage = null;
+            try {
+                if (!isCancelled()) {
+                    BufferedImage loaded = get();
+                    if (tiledSession != null) {
+                        proxySession = tiledSession;
+                        originalImage = loaded;
+                        image = copyImage(loaded);
+                        FilterMetrics.end(sample, (long) proxySession.getFullWidth() * proxySession.getFullHeight());
+                    } else {
+                        image = loaded;
+                        originalImage = original != null ? original : copyImage(loaded);
+                        FilterMetrics.end(sample, (long) loaded.getWidth() * loaded.getHeight());
+                    }
+                    if (resumed != null) {
+                        history = resumed;
+                        resetSelection();
+                    } else {
+                        resetStates();
+                        if (tiledSession == null) {
+                            history.setJournal(new SessionJournal(file));
+                        }
+                    }
+                    if (proxyEditing && proxySession == null) {
+                        startProxySession();
+                    }
+                    controlPanel.enableControls(true);
+                }
+            } catch (InterruptedException | ExecutionException e) {
                 e.printStackTrace();
+                keepHistory();
+            }
+            if (image == null && currentFile == file) {
+                currentFile = null;
+                thumbnailStrip.setSelected(null);
             }
+            repaint();
         }
     }
 
-    private void setImage(BufferedImage newImage) {
-        image = new BufferedImage(newImage.getWidth(), newImage.getHeight(), BufferedImage.TYPE_INT_RGB);
-        Graphics g = image.getGraphics();
-        g.drawImage(newImage, 0, 0, null);
-        g.dispose();
+    private void resetStates() {
+        history.reset(originalImage);
+        resetSelection();
     }
 
-    private void resetStates() {
-        undoStack.clear();
-        redoStack.clear();
+    private void resetSelection() {
         pointCount = 0;
         drawBorder = false;
         selectedPoints = new Point[4];
@@ -109,40 +421,201 @@ public class ImagePanel extends JPanel {
     }
 
     public void applyFilter(String filterName) {
+        applyFilters(FilterChain.of(filterName));
+    }
+
+    public void applyFilters(FilterChain chain) {
         if (image == null) {
             JOptionPane.showMessageDialog(this, "Please load an image first.");
             return;
         }
 
-        undoStack.push(copyImage(image));
-        redoStack.clear();
-
-        if (pointCount == 4) {
-            Rectangle selection = getSelectionRectangle();
-            int imgX1 = (selection.x - imageX) * image.getWidth() / drawWidth;
-            int imgY1 = (selection.y - imageY) * image.getHeight() / drawHeight;
-            int imgX2 = (selection.width * image.getWidth()) / drawWidth;
-            int imgY2 = (selection.height * image.getHeight()) / drawHeight;
-
-            BufferedImage subImage = image.getSubimage(imgX1, imgY1, imgX2, imgY2);
-            Filters.applyFilter(subImage, filterName);
-            Graphics g = image.getGraphics();
-            g.drawImage(subImage, imgX1, imgY1, null);
-            g.dispose();
-        } else {
-            Filters.applyFilter(image, filterName);
+        clearPreview();
+        Rectangle region = selectedRegion(image.getWidth(), image.getHeight());
+        Rectangle fullRegion = null;
+        if (proxySession != null) {
+            fullRegion = selectedRegion(proxySession.getFullWidth(), proxySession.getFullHeight());
+            chain = chain.atScale(proxySession.getScale());
         }
         pointCount = 0;
         drawBorder = false;
-        repaint();
+        repaintOverlay();
+
+        FilterJob job = new FilterJob(chain, region, fullRegion);
+        if (currentJob == null) {
+            startJob(job);
+        } else if (!job.sameWork(currentJob) && (pendingJob == null || !job.sameWork(pendingJob))) {
+            // Only the most recent click waits behind the running job.
+            pendingJob = job;
+        }
+    }
+
+    public void cancelFilter() {
+        if (loadJob != null) {
+            loadJob.abort();
+            return;
+        }
+        pendingJob = null;
+        if (currentJob != null) {
+            currentJob.cancel(false);
+        }
+    }
+
+    private void startJob(FilterJob job) {
+        currentJob = job;
+        controlPanel.setBusy(true);
+        thumbnailStrip.setEnabled(false);
+        job.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                controlPanel.setProgress((Integer) e.getNewValue());
+            }
+        });
+        job.start();
+    }
+
+    private void jobFinished(FilterJob job) {
+        if (job != currentJob) {
+            return;
+        }
+        currentJob = null;
+        FilterJob next = pendingJob;
+        pendingJob = null;
+        if (next != null) {
+            startJob(next);
+            return;
+        }
+        controlPanel.setBusy(false);
+        thumbnailStrip.setEnabled(true);
         controlPanel.updateUndoRedoButtonState();
         controlPanel.updateClearButtonState();
     }
 
+    // Filters a private copy of the target region off the EDT. The image and history are only
+    // touched in done(), so a cancelled job leaves no trace.
+    private class FilterJob extends SwingWorker<BufferedImage, Void> {
+        private final FilterChain chain;
+        private final Rectangle region;
+        private final Rectangle fullRegion;
+        // The image and its state as the job starts, which for a pending job is after the one
+        // before it has been committed; see start.
+        private BufferedImage source;
+        private long fingerprint;
+        // The work image comes from RasterPool. done() copies it out and gives it back; a run
+        // that fails gives it back itself. A cancelled job's done() can run while filter is
+        // still writing the image, so then whichever of the two finishes last gives it back.
+        private BufferedImage work;
+        private boolean workFinished;
+        private boolean abandoned;
+
+        FilterJob(FilterChain chain, Rectangle region, Rectangle fullRegion) {
+            this.chain = chain;
+            this.region = region;
+            this.fullRegion = fullRegion;
+        }
+
+        // Called on the EDT right before execute, which publishes the fields to the worker.
+        void start() {
+            source = image;
+            fingerprint = history.getFingerprint();
+            execute();
+        }
+
+        boolean sameWork(FilterJob other) {
+            return chain.equals(other.chain) && region.equals(other.region);
+        }
+
+        @Override
+        protected BufferedImage doInBackground() {
+            BufferedImage work = RasterPool.acquireImage(region.width, region.height);
+            synchronized (this) {
+                this.work = work;
+            }
+            boolean filtered = false;
+            try {
+                filter(work);
+                filtered = true;
+                return work;
+            } finally {
+                synchronized (this) {
+                    workFinished = true;
+                    if (!filtered || abandoned) {
+                        releaseWork();
+                    }
+                }
+            }
+        }
+
+        private synchronized void abandon() {
+            abandoned = true;
+            if (workFinished) {
+                releaseWork();
+            }
+        }
+
+        private synchronized void releaseWork() {
+            if (work != null) {
+                RasterPool.releaseImage(work);
+                work = null;
+            }
+        }
+
+        private void filter(BufferedImage work) {
+            EditHistory.copyRegion(source, region, work, 0, 0);
+            long totalRows = Math.max(1L, (long) region.height * chain.passCount());
+            AtomicLong doneRows = new AtomicLong();
+            ResultCache.getInstance().apply(fingerprint, region, chain, work, new FilterProgress() {
+                @Override
+                public boolean isCancelled() {
+                    return FilterJob.this.isCancelled();
+                }
+
+                @Override
+                public void rowsCompleted(int rows) {
+                    setProgress((int) Math.min(100, doneRows.addAndGet(rows) * 100 / totalRows));
+                }
+            });
+        }
+
+        @Override
+        protected void done() {
+            try {
+                if (isCancelled()) {
+                    abandon();
+                    return;
+                }
+                BufferedImage filtered = get();
+                if (source == image && fingerprint == history.getFingerprint()) {
+                    EditHistory.Edit edit = history.record(image, region, chain);
+                    uncount(region);
+                    EditHistory.copyRegion(filtered, new Rectangle(0, 0, region.width, region.height),
+                            image, region.x, region.y);
+                    count(region);
+                    history.committed(image);
+                    if (proxySession != null) {
+                        proxySession.mapEdit(edit, fullRegion);
+                    }
+                    displayCache.refresh(region);
+                    proxyEdited();
+                    if (previewChain != null) {
+                        previewFilter(previewChain);
+                    }
+                    repaint();
+                }
+                releaseWork();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            } finally {
+                jobFinished(this);
+            }
+        }
+    }
+
     public void undoFilter() {
-        if (!undoStack.isEmpty()) {
-            redoStack.push(copyImage(image));
-            image = undoStack.pop();
+        clearPreview();
+        if (history.canUndo()) {
+            uncount(history.getUndoRegion());
+            displayCache.refresh(count(history.undo(image)));
+            proxyEdited();
             repaint();
             controlPanel.updateUndoRedoButtonState();
             controlPanel.updateClearButtonState();
@@ -150,9 +623,11 @@ public class ImagePanel extends JPanel {
     }
 
     public void redoFilter() {
-        if (!redoStack.isEmpty()) {
-            undoStack.push(copyImage(image));
-            image = redoStack.pop();
+        clearPreview();
+        if (history.canRedo()) {
+            uncount(history.getRedoRegion());
+            displayCache.refresh(count(history.redo(image)));
+            proxyEdited();
             repaint();
             controlPanel.updateUndoRedoButtonState();
             controlPanel.updateClearButtonState();
@@ -160,38 +635,414 @@ public class ImagePanel extends JPanel {
     }
 
     public void clearFilters() {
+        clearPreview();
         if (originalImage != null) {
             image = copyImage(originalImage);
-            resetStates();
+            history.clear(originalImage);
+            resetSelection();
+            if (proxySession != null) {
+                proxySession.clearPrefix();
+                proxyEdited();
+            }
             repaint();
             controlPanel.updateUndoRedoButtonState();
             controlPanel.updateClearButtonState();
         }
     }
 
+    // Shows chain on the visible part of the selection (or the whole picture) at screen
+    // resolution, once the values have stopped changing for PREVIEW_DELAY_MS. A newer value
+    // cancels the render in progress. Nothing is recorded until the chain is applied.
+    public void previewFilter(FilterChain chain) {
+        if (image == null || loadJob != null) {
+            return;
+        }
+        previewChain = chain;
+        if (previewJob != null) {
+            previewJob.cancel(false);
+            previewJob = null;
+        }
+        previewTimer.restart();
+    }
+
+    public void clearPreview() {
+        previewChain = null;
+        previewTimer.stop();
+        if (previewJob != null) {
+            previewJob.cancel(false);
+            previewJob = null;
+        }
+        if (preview != null) {
+            preview = null;
+            repaint();
+        }
+    }
+
+    private void startPreview() {
+        BufferedImage scaled = displayCache.getScaled();
+        if (previewChain == null || scaled == null) {
+            return;
+        }
+        Rectangle bounds = new Rectangle(0, 0, scaled.getWidth(), scaled.getHeight());
+        if (pointCount == 4) {
+            Rectangle selection = getSelectionRectangle();
+            selection.translate(-imageX, -imageY);
+            bounds = bounds.intersection(selection);
+        }
+        if (bounds.isEmpty()) {
+            return;
+        }
+        BufferedImage work = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_RGB);
+        EditHistory.copyRegion(scaled, bounds, work, 0, 0);
+        int fullWidth = proxySession != null ? proxySession.getFullWidth() : image.getWidth();
+        previewJob = new PreviewJob(previewChain.atScale((double) scaled.getWidth() / fullWidth), work, bounds);
+        previewJob.execute();
+    }
+
+    private class PreviewJob extends SwingWorker<BufferedImage, Void> {
+        private final FilterChain chain;
+        private final BufferedImage work;
+        private final Rectangle bounds;
+
+        PreviewJob(FilterChain chain, BufferedImage work, Rectangle bounds) {
+            this.chain = chain;
+            this.work = work;
+            this.bounds = bounds;
+        }
+
+        @Override
+        protected BufferedImage doInBackground() {
+            FilterMetrics.Sample sample = FilterMetrics.begin("previewFilter");
+            chain.apply(work, new FilterProgress() {
+                @Override
+                public boolean isCancelled() {
+                    return PreviewJob.this.isCancelled();
+                }
+
+                @Override
+                public void rowsCompleted(int rows) {
+                }
+            });
+            FilterMetrics.end(sample, (long) work.getWidth() * work.getHeight());
+            return work;
+        }
+
+        @Override
+        protected void done() {
+            if (previewJob != this || isCancelled()) {
+                return;
+            }
+            previewJob = null;
+            try {
+                preview = get();
+                previewBounds = bounds;
+                repaint();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     public void saveImage() {
         if (image == null) {
             JOptionPane.showMessageDialog(this, "Please load an image first.");
             return;
         }
+        if (saveJob != null) {
+            return;
+        }
+        boolean tiled = proxySession != null && proxySession.isTiled();
 
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setAcceptAllFileFilterUsed(false);
-        fileChooser.addChoosableFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("JPEG files", "jpg", "jpeg"));
-        if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+        // The JPEG writer copies its whole source into one raster and BMP is written bottom-up,
+        // so tiled images are only offered formats whose writers pull rows top to bottom.
+        if (!tiled) {
+            fileChooser.addChoosableFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("JPEG files", "jpg", "jpeg"));
+        }
+        fileChooser.addChoosableFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("PNG files (lossless)", "png"));
+        if (!tiled) {
+            fileChooser.addChoosableFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("BMP files (fast)", "bmp"));
+        }
+        fileChooser.addChoosableFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("PPM files (fastest)", "ppm"));
+        fileChooser.setFileFilter(fileChooser.getChoosableFileFilters()[0]);
+        if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        String[] extensions = ((javax.swing.filechooser.FileNameExtensionFilter) fileChooser.getFileFilter()).getExtensions();
+        String format = extensions[0];
+        File file = fileChooser.getSelectedFile();
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        if (Arrays.stream(extensions).noneMatch(e -> name.endsWith("." + e))) {
+            file = new File(file.getAbsolutePath() + "." + format);
+        }
+        Integer level = askSaveLevel(format);
+        if (level == null) {
+            return;
+        }
+
+        // Without a proxy the image is copied here, so edits made while the save runs do not
+        // reach the file. A proxy session renders from its untouched original on the worker.
+        BufferedImage snapshot = null;
+        ProxySession.Replay replay = null;
+        List<EditHistory.Edit> edits = history.getAppliedEdits();
+        if (proxySession == null) {
+            snapshot = copyImage(image);
+        } else if (!tiled) {
+            snapshot = proxySession.getRendered(edits);
+        }
+        if (snapshot == null) {
+            replay = proxySession.snapshot(edits);
+        }
+        saveJob = new SaveJob(file.toPath(), format, level, snapshot, proxySession, replay);
+        controlPanel.setSaving(true);
+        saveJob.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                controlPanel.setSaveProgress((Integer) e.getNewValue());
+            }
+        });
+        saveJob.execute();
+    }
+
+    // The JPEG quality or PNG compression level for the next save, or null if the user backed
+    // out. Other formats have nothing to tune.
+    private Integer askSaveLevel(String format) {
+        JSlider slider;
+        String label;
+        if (format.equals("jpg")) {
+            slider = new JSlider(0, 100, jpegQuality);
+            slider.setMajorTickSpacing(25);
+            label = "JPEG quality (higher is sharper and larger):";
+        } else if (format.equals("png")) {
+            slider = new JSlider(0, 9, pngLevel);
+            slider.setMajorTickSpacing(1);
+            label = "PNG compression (higher is smaller and slower):";
+        } else {
+            return -1;
+        }
+        slider.setPaintTicks(true);
+        slider.setPaintLabels(true);
+        int choice = JOptionPane.showConfirmDialog(this, new Object[]{label, slider}, "Save Options",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (choice != JOptionPane.OK_OPTION) {
+            return null;
+        }
+        if (format.equals("jpg")) {
+            jpegQuality = slider.getValue();
+        } else {
+            pngLevel = slider.getValue();
+        }
+        return slider.getValue();
+    }
+
+    // Encodes a snapshot off the EDT, so editing carries on while the file is written. Proxy
+    // sessions are rendered here first unless their background render was already current.
+    private class SaveJob extends SwingWorker<Void, Void> {
+        private final Path target;
+        private final String format;
+        private final int level;
+        private final BufferedImage snapshot;
+        private final ProxySession session;
+        private final ProxySession.Replay replay;
+        private boolean closeSession;
+
+        SaveJob(Path target, String format, int level, BufferedImage snapshot, ProxySession session,
+                ProxySession.Replay replay) {
+            this.target = target;
+            this.format = format;
+            this.level = level;
+            this.snapshot = snapshot;
+            this.session = session;
+            this.replay = replay;
+        }
+
+        @Override
+        protected Void doInBackground() throws IOException {
+            FilterMetrics.Sample sample = FilterMetrics.begin("saveImage");
+            RenderedImage output = snapshot;
+            if (output == null) {
+                output = session.isTiled() ? session.renderTiled(replay, FilterProgress.NONE)
+                        : session.render(replay, FilterProgress.NONE);
+            }
+            ImageSaver.write(output, target, format, level, percent -> setProgress(Math.max(0, Math.min(100, percent))));
+            FilterMetrics.end(sample, (long) output.getWidth() * output.getHeight());
+            return null;
+        }
+
+        @Override
+        protected void done() {
+            saveJob = null;
+            controlPanel.setSaving(false);
+            if (closeSession) {
+                session.close();
+            }
             try {
-                File file = fileChooser.getSelectedFile();
-                if (!file.getAbsolutePath().endsWith(".jpg") && !file.getAbsolutePath().endsWith(".jpeg")) {
-                    file = new File(file.getAbsolutePath() + ".jpg");
-                }
-                ImageIO.write(image, "jpg", file);
-                JOptionPane.showMessageDialog(this, "Image saved successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
-            } catch (IOException e) {
+                get();
+                JOptionPane.showMessageDialog(ImagePanel.this, "Image saved successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                JOptionPane.showMessageDialog(ImagePanel.this, "Could not save " + target.getFileName() + ": "
+                        + e.getCause().getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    // Maps the on-screen selection (or the whole picture if there is none) onto an image of the
+    // given size. The proxy and the full-resolution image go through the same math, so both
+    // regions cover the same part of the picture.
+    private Rectangle selectedRegion(int width, int height) {
+        if (pointCount != 4) {
+            return new Rectangle(0, 0, width, height);
+        }
+        Rectangle selection = getSelectionRectangle();
+        int imgX1 = (selection.x - imageX) * width / drawWidth;
+        int imgY1 = (selection.y - imageY) * height / drawHeight;
+        int imgX2 = (selection.width * width) / drawWidth;
+        int imgY2 = (selection.height * height) / drawHeight;
+        return new Rectangle(imgX1, imgY1, imgX2, imgY2);
+    }
+
+    public void setProxyEditing(boolean enabled) {
+        if (enabled == proxyEditing) {
+            return;
+        }
+        proxyEditing = enabled;
+        // A tiled image can only be edited through its proxy.
+        if (image == null || proxySession != null && proxySession.isTiled()) {
+            return;
+        }
+        if (!enabled) {
+            proxySession.cancel();
+            proxyExitJob = new ProxyExitJob(proxySession);
+            proxyExitJob.execute();
+            return;
+        }
+        if (proxyExitJob != null) {
+            // Switched back on before the full image was ready: carry on with the same session.
+            proxyExitJob.cancel(false);
+            proxyExitJob = null;
+            return;
+        }
+        startProxySession();
+        repaint();
+        controlPanel.updateUndoRedoButtonState();
+        controlPanel.updateClearButtonState();
+    }
+
+    // Leaves preview editing: replays the session at full resolution off the EDT, into a
+    // history of its own, and switches the panel over in done(). Until then the proxy stays
+    // on screen and can still be edited; proxyEdited starts the replay again for each edit.
+    private class ProxyExitJob extends SwingWorker<BufferedImage, Void> {
+        private final ProxySession session;
+        private final ProxySession.Replay replay;
+        private final EditHistory rendered;
+
+        ProxyExitJob(ProxySession session) {
+            this.session = session;
+            this.replay = session.snapshot(history.getAppliedEdits());
+            this.rendered = new EditHistory(history.getBudgetBytes());
+        }
+
+        @Override
+        protected BufferedImage doInBackground() {
+            return session.renderInto(rendered, replay);
+        }
+
+        @Override
+        protected void done() {
+            if (proxyExitJob != this || isCancelled()) {
+                return;
+            }
+            proxyExitJob = null;
+            if (proxySession != session) {
+                return;
+            }
+            BufferedImage full;
+            try {
+                full = get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                return;
+            }
+            originalImage = session.getFullOriginal();
+            image = full;
+            history = rendered;
+            proxySession = null;
+            pointCount = 0;
+            drawBorder = false;
+            repaint();
+            controlPanel.updateUndoRedoButtonState();
+            controlPanel.updateClearButtonState();
+        }
+    }
+
+    // Switches the panel over to a screen-sized copy of the current image. Edits made so far
+    // carry over as the session prefix; undo starts afresh from here.
+    private void startProxySession() {
+        int maxWidth = drawWidth > 0 ? drawWidth : Math.max(getWidth(), 1280);
+        int maxHeight = drawHeight > 0 ? drawHeight : Math.max(getHeight(), 960);
+        proxySession = new ProxySession(originalImage, history.getAppliedEdits(), maxWidth, maxHeight);
+        BufferedImage proxyBase = proxySession.toProxy(image);
+        originalImage = proxySession.toProxy(originalImage);
+        image = copyImage(proxyBase);
+        resetStates();
+        history.reset(proxyBase);
+    }
+
+    private void proxyEdited() {
+        if (proxySession == null) {
+            return;
+        }
+        if (proxyExitJob != null) {
+            proxyExitJob.cancel(false);
+            proxyExitJob = new ProxyExitJob(proxySession);
+            proxyExitJob.execute();
+        } else {
+            proxySession.renderInBackground(history.getAppliedEdits());
+        }
+    }
+
+    // Counts of the selection, or of the whole image if nothing is selected; null without an
+    // image. The whole-image counts are only taken once per image.
+    public Histogram getHistogram() {
+        if (image == null) {
+            return null;
+        }
+        Rectangle bounds = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+        if (histogrammed != image) {
+            histogram = Histogram.of(image, bounds);
+            histogrammed = image;
+            selectionHistogram = null;
+        }
+        if (pointCount != 4) {
+            return histogram;
+        }
+        Rectangle region = selectedRegion(image.getWidth(), image.getHeight()).intersection(bounds);
+        if (selectionHistogram == null || !region.equals(selectionHistogramRegion)) {
+            selectionHistogram = region.isEmpty() ? new Histogram() : Histogram.of(image, region);
+            selectionHistogramRegion = region;
+        }
+        return selectionHistogram;
+    }
+
+    // Takes region out of the image counts before its pixels are rewritten in place.
+    private void uncount(Rectangle region) {
+        if (histogrammed == image && region != null) {
+            histogram.subtract(Histogram.of(image, region));
+        }
+        selectionHistogram = null;
+    }
+
+    // Adds region back once it has been rewritten; returns it.
+    private Rectangle count(Rectangle region) {
+        if (histogrammed == image && region != null) {
+            histogram.add(Histogram.of(image, region));
+        }
+        return region;
+    }
+
     private Rectangle getSelectionRectangle() {
         int minX = Math.min(Math.min(selectedPoints[0].x, selectedPoints[1].x), Math.min(selectedPoints[2].x, selectedPoints[3].x));
         int minY = Math.min(Math.min(selectedPoints[0].y, selectedPoints[1].y), Math.min(selectedPoints[2].y, selectedPoints[3].y));
@@ -201,14 +1052,36 @@ public class ImagePanel extends JPanel {
         return new Rectangle(minX, minY, maxX - minX, maxY - minY);
     }
 
-    private BufferedImage copyImage(BufferedImage source) {
+    static BufferedImage copyImage(BufferedImage source) {
+        FilterMetrics.Sample sample = FilterMetrics.begin("copyImage");
         BufferedImage copy = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_RGB);
         Graphics g = copy.getGraphics();
         g.drawImage(source, 0, 0, null);
         g.dispose();
+        FilterMetrics.end(sample, (long) source.getWidth() * source.getHeight());
         return copy;
     }
 
+    private Rectangle overlayBounds() {
+        Rectangle bounds = null;
+        for (int i = 0; i < pointCount; i++) {
+            Rectangle dot = new Rectangle(selectedPoints[i].x - 6, selectedPoints[i].y - 6, 12, 12);
+            bounds = bounds == null ? dot : bounds.union(dot);
+        }
+        return bounds;
+    }
+
+    // Repaints just the area covered by the old and new selection markers; the scaled image
+    // underneath comes from the display cache and is only blitted within that clip.
+    private void repaintOverlay() {
+        Rectangle current = overlayBounds();
+        Rectangle dirty = paintedOverlay == null ? current
+                : current == null ? paintedOverlay : paintedOverlay.union(current);
+        if (dirty != null) {
+            repaint(dirty);
+        }
+    }
+
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
@@ -231,7 +1104,19 @@ public class ImagePanel extends JPanel {
             imageX = (width - drawWidth) / 2;
             imageY = (height - drawHeight) / 2;
 
-            g.drawImage(image, imageX, imageY, drawWidth, drawHeight, this);
+            BufferedImage scaled = displayCache.getScaled();
+            displayCache.validate(image, drawWidth, drawHeight);
+            displayCache.paint(g, imageX, imageY, getGraphicsConfiguration());
+            if (preview != null && displayCache.getScaled() != scaled) {
+                // Resized: the preview no longer lines up, so render it again at the new size.
+                preview = null;
+                if (previewChain != null) {
+                    previewTimer.restart();
+                }
+            }
+            if (preview != null) {
+                g.drawImage(preview, imageX + previewBounds.x, imageY + previewBounds.y, null);
+            }
 
             g.setColor(Color.RED);
             if (drawBorder && pointCount == 4) {
@@ -242,6 +1127,26 @@ public class ImagePanel extends JPanel {
                     g.fillOval(selectedPoints[i].x - 5, selectedPoints[i].y - 5, 10, 10);
                 }
             }
+            paintedOverlay = overlayBounds();
+        }
+        if (FilterMetrics.isOverlayVisible()) {
+            paintStats(g);
+        }
+    }
+
+    private void paintStats(Graphics g) {
+        String[] lines = FilterMetrics.getInstance().getSummary();
+        FontMetrics metrics = g.getFontMetrics();
+        int lineHeight = metrics.getHeight();
+        int width = 0;
+        for (String line : lines) {
+            width = Math.max(width, metrics.stringWidth(line));
+        }
+        g.setColor(new Color(0, 0, 0, 160));
+        g.fillRect(4, 4, width + 12, lines.length * lineHeight + 8);
+        g.setColor(Color.WHITE);
+        for (int i = 0; i < lines.length; i++) {
+            g.drawString(lines[i], 10, 8 + metrics.getAscent() + i * lineHeight);
         }
     }
 
@@ -249,10 +1154,12 @@ public class ImagePanel extends JPanel {
         String instructions = "<html><body>" +
                 "<h2><b>הוראות</b></h2>" +
                 "<p><b>טעינת תמונה:</b> לחצו על 'Select Image'</p><br>" +
+                "<p><b>מעבר בין תמונות בתיקייה:</b> לחצו על 'Open Folder' ובחרו תמונה ברצועה</p><br>" +
                 "<p><b>להגדיר פילטר:</b> בחר פילטר ולאחר מכן לחץ 'Apply'</p><br>" +
                 "<p><b>הוספת נקודה:</b> לחיצה שמאלית להוספת נקודה</p><br>" +
                 "<p><b>מחיקת נקודה:</b> לחיצה ימינית למחיקת נקודה</p><br>" +
                 "<p><b>ניקוי כל הפילטרים:</b> לחץ 'Clear Filters'</p><br>" +
+                "<p><b>שחזור עבודה:</b> העריכות נשמרות ביומן, ופתיחה מחדש של התמונה משחזרת אותן עם ביטול וחזרה</p><br>" +
                 "<p><b>שמירת תמונה:</b> לחץ 'Save'</p>" +
                 "</body></html>";
 
@@ -0,0 +1,193 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.RenderedImage;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+// Writes images to disk. The output goes to a temporary file next to the target that is synced
+// and then renamed over it, so an interrupted save leaves either the old file or the complete
+// new one. ImageWriters are expensive to look up and create, so idle ones are kept per format
+// and reused; each save checks one out, which keeps concurrent saves (batch encoders) safe.
+public class ImageSaver {
+    private static final Map<String, ArrayDeque<ImageWriter>> IDLE = new HashMap<>();
+
+    // level is the JPEG quality (0-100) or the PNG deflate level (0-9) and is ignored by other
+    // formats; a negative level keeps the writer's default. progress receives percentages and
+    // may be null.
+    public static void write(RenderedImage image, Path target, String format, int level, IntConsumer progress)
+            throws IOException {
+        format = format.toLowerCase(Locale.ROOT);
+        Path dir = target.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+        try {
+            if (format.equals("ppm") || format.equals("pnm")) {
+                try (RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw");
+                     OutputStream out = new BufferedOutputStream(Channels.newOutputStream(file.getChannel()), 1 << 16)) {
+                    writePpm(image, out, progress);
+                    out.flush();
+                    file.getFD().sync();
+                }
+            } else {
+                writeWithImageIO(image, temp, format, level, progress);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Encodes straight onto out, e.g. an HTTP response, which is flushed but left open.
+    public static void write(RenderedImage image, OutputStream out, String format, int level) throws IOException {
+        format = format.toLowerCase(Locale.ROOT);
+        if (format.equals("ppm") || format.equals("pnm")) {
+            writePpm(image, out, null);
+        } else {
+            try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+                encode(image, stream, format, level, null);
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeWithImageIO(RenderedImage image, Path temp, String format, int level, IntConsumer progress)
+            throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw");
+             FileImageOutputStream out = new FileImageOutputStream(file)) {
+            encode(image, out, format, level, progress);
+            out.flush();
+            file.getFD().sync();
+        }
+    }
+
+    private static void encode(RenderedImage image, ImageOutputStream out, String format, int level, IntConsumer progress)
+            throws IOException {
+        ImageWriter writer = checkOut(format);
+        try {
+            writer.setOutput(out);
+            if (progress != null) {
+                writer.addIIOWriteProgressListener(new ProgressListener(progress));
+            }
+            writer.write(null, new IIOImage(image, null, null), param(writer, format, level));
+        } finally {
+            writer.removeAllIIOWriteProgressListeners();
+            writer.setOutput(null);
+            checkIn(format, writer);
+        }
+    }
+
+    private static ImageWriteParam param(ImageWriter writer, String format, int level) {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (level < 0 || !param.canWriteCompressed()) {
+            return param;
+        }
+        if (format.equals("jpg") || format.equals("jpeg")) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(Math.min(100, level) / 100f);
+        } else if (format.equals("png")) {
+            // The PNG writer maps quality q to deflate level 9 - round(9 * q).
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality((9 - Math.min(9, level)) / 9f);
+        }
+        return param;
+    }
+
+    private static ImageWriter checkOut(String format) throws IOException {
+        synchronized (IDLE) {
+            ArrayDeque<ImageWriter> idle = IDLE.get(format);
+            if (idle != null && !idle.isEmpty()) {
+                return idle.pop();
+            }
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(format);
+        if (!writers.hasNext()) {
+            throw new IOException("No writer for format " + format);
+        }
+        return writers.next();
+    }
+
+    private static void checkIn(String format, ImageWriter writer) {
+        writer.reset();
+        synchronized (IDLE) {
+            IDLE.computeIfAbsent(format, f -> new ArrayDeque<>()).push(writer);
+        }
+    }
+
+    // Binary PPM, pulled one row at a time so tiled and streamed images are never copied whole.
+    static void writePpm(RenderedImage image, OutputStream out, IntConsumer progress) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        out.write(("P6\n" + width + " " + height + "\n255\n").getBytes());
+        byte[] row = new byte[width * 3];
+        int[] pixels = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getData(new Rectangle(0, y, width, 1)).getDataElements(0, y, width, 1, pixels);
+            for (int x = 0, i = 0; x < width; x++) {
+                int rgb = pixels[x];
+                row[i++] = (byte) (rgb >> 16);
+                row[i++] = (byte) (rgb >> 8);
+                row[i++] = (byte) rgb;
+            }
+            out.write(row);
+            if (progress != null && (y + 1) % 64 == 0) {
+                progress.accept((int) ((y + 1L) * 100 / height));
+            }
+        }
+    }
+
+    private static class ProgressListener implements IIOWriteProgressListener {
+        private final IntConsumer progress;
+
+        ProgressListener(IntConsumer progress) {
+            this.progress = progress;
+        }
+
+        @Override
+        public void imageProgress(ImageWriter source, float percentageDone) {
+            progress.accept((int) percentageDone);
+        }
+
+        @Override
+        public void imageStarted(ImageWriter source, int imageIndex) {
+        }
+
+        @Override
+        public void imageComplete(ImageWriter source) {
+            progress.accept(100);
+        }
+
+        @Override
+        public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) {
+        }
+
+        @Override
+        public void thumbnailProgress(ImageWriter source, float percentageDone) {
+        }
+
+        @Override
+        public void thumbnailComplete(ImageWriter source) {
+        }
+
+        @Override
+        public void writeAborted(ImageWriter source) {
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BandCombineOp;
+import java.awt.image.ByteLookupTable;
+import java.awt.image.ConvolveOp;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Kernel;
+import java.awt.image.LookupOp;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+// Java2D image ops standing in for the built-in kernels: lookup tables for the per-channel
+// filters, a band matrix for Color Shift Right, a flip for Mirror and difference convolutions
+// for Show Borders. The ops run on rasters laid over the pixel arrays, so no pixels are copied
+// in or out; the JDK runs LookupOp, AffineTransformOp and ConvolveOp in its native imaging
+// library where that is available. Results must match the scalar kernels in Filters bit for
+// bit, which FilterBackends checks for every settings and pixel layout it routes here.
+public class Java2DKernels {
+    // Alpha is a band of its own, so the ops leave its byte the way the scalar kernels do.
+    private static final int[] MASKS = {0xFF0000, 0xFF00, 0xFF, 0xFF000000};
+    private static final byte[] ZERO = new byte[256];
+    private static final byte[] SAME = table(v -> v);
+    // The band of each mask that LookupOp applies a table to, see lookupOrder.
+    private static final int[] LOOKUP_ORDER = lookupOrder();
+
+    // ConvolveOp flips its kernel, so {-1, 1, 0} computes v - (right or lower neighbour) and
+    // {1, -1, 0} the reverse; negative sums clamp to 0, so the two add up to the absolute
+    // difference.
+    private static final ConvolveOp[] DIFFERENCES = {
+            new ConvolveOp(new Kernel(3, 1, new float[]{-1, 1, 0})),
+            new ConvolveOp(new Kernel(3, 1, new float[]{1, -1, 0})),
+            new ConvolveOp(new Kernel(1, 3, new float[]{-1, 1, 0})),
+            new ConvolveOp(new Kernel(1, 3, new float[]{1, -1, 0}))};
+
+    private static byte[] table(IntUnaryOperator f) {
+        byte[] table = new byte[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = (byte) f.applyAsInt(v);
+        }
+        return table;
+    }
+
+    public boolean supports(PixelFilter filter, FilterSettings settings) {
+        switch (filter.getName()) {
+            case "Negative":
+            case "Posterize":
+            case "Eliminate Red":
+            case "Tint":
+            case "Color Shift Right":
+            case "Mirror":
+            case "Show Borders":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Same contract as PixelFilter.apply: rows [y0, y1) of dst, which is src for filters that
+    // run in place.
+    public void apply(PixelFilter filter, FilterSettings settings, PixelBuffer src, PixelBuffer dst, int y0, int y1) {
+        // A raster cannot be empty.
+        if (y0 >= y1 || src.width == 0) {
+            return;
+        }
+        switch (filter.getName()) {
+            case "Negative": {
+                byte[] inverted = table(v -> 255 - v);
+                lookup(dst, y0, y1, inverted, inverted, inverted);
+                break;
+            }
+            case "Posterize": {
+                int step = 256 / settings.getInt("levels");
+                byte[] steps = table(v -> (v / step) * step);
+                lookup(dst, y0, y1, steps, steps, steps);
+                break;
+            }
+            case "Eliminate Red":
+                lookup(dst, y0, y1, ZERO, SAME, SAME);
+                break;
+            case "Tint": {
+                int tintRgb = settings.getInt("color");
+                lookup(dst, y0, y1, table(v -> Math.min((v + ((tintRgb >> 16) & 0xFF)) / 2, 255)),
+                        table(v -> Math.min((v + ((tintRgb >> 8) & 0xFF)) / 2, 255)),
+                        table(v -> Math.min((v + (tintRgb & 0xFF)) / 2, 255)));
+                break;
+            }
+            case "Color Shift Right": {
+                WritableRaster raster = raster(dst, y0, y1);
+                new BandCombineOp(new float[][]{{0, 0, 1, 0}, {1, 0, 0, 0}, {0, 1, 0, 0}, {0, 0, 0, 0}}, null)
+                        .filter(raster, raster);
+                break;
+            }
+            case "Mirror":
+                mirror(dst, y0, y1);
+                break;
+            case "Show Borders":
+                showBorders(src, dst, y0, y1, settings.get("threshold") / settings.getScale());
+                break;
+            default:
+                throw new IllegalArgumentException("No Java2D version of " + filter.getName());
+        }
+    }
+
+    // Rows [y0, y1) of p as a four band raster over its pixel array.
+    private static WritableRaster raster(PixelBuffer p, int y0, int y1) {
+        int offset = p.index(0, y0);
+        return Raster.createWritableRaster(
+                new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, p.width, y1 - y0, p.stride, MASKS),
+                new DataBufferInt(p.data, p.data.length - offset, offset), null);
+    }
+
+    private static WritableRaster raster(int[] data, int width, int height) {
+        return Raster.createWritableRaster(
+                new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, width, MASKS),
+                new DataBufferInt(data, width * height), null);
+    }
+
+    // The per-channel filters all write a zero alpha byte.
+    private static void lookup(PixelBuffer p, int y0, int y1, byte[] r, byte[] g, byte[] b) {
+        byte[][] wanted = {r, g, b, ZERO};
+        byte[][] tables = new byte[4][];
+        for (int c = 0; c < 4; c++) {
+            tables[LOOKUP_ORDER[c]] = wanted[c];
+        }
+        WritableRaster raster = raster(p, y0, y1);
+        new LookupOp(new ByteLookupTable(0, tables), null).filter(raster, raster);
+    }
+
+    // The native LookupOp may take the bytes of a packed pixel in memory order rather than in
+    // the order of the sample model's masks, so the table each channel gets is found out once
+    // by giving every band a table that writes its own number.
+    private static int[] lookupOrder() {
+        int[] shifts = {16, 8, 0, 24};
+        byte[][] tables = new byte[4][256];
+        for (int band = 0; band < 4; band++) {
+            Arrays.fill(tables[band], (byte) (band + 1));
+        }
+        int[] pixel = new int[1];
+        WritableRaster raster = raster(pixel, 1, 1);
+        new LookupOp(new ByteLookupTable(0, tables), null).filter(raster, raster);
+        int[] order = new int[4];
+        int seen = 0;
+        for (int c = 0; c < 4; c++) {
+            order[c] = ((pixel[0] >>> shifts[c]) & 0xFF) - 1;
+            seen |= order[c] >= 0 && order[c] < 4 ? 1 << order[c] : 0;
+        }
+        return seen == 0xF ? order : new int[]{0, 1, 2, 3};
+    }
+
+    // AffineTransformOp cannot write the raster it reads, so the flipped rows go through a
+    // pooled array.
+    private static void mirror(PixelBuffer p, int y0, int y1) {
+        int rows = y1 - y0;
+        int[] flipped = RasterPool.acquire(p.width * rows);
+        try {
+            new AffineTransformOp(new AffineTransform(-1, 0, 0, 1, p.width, 0), AffineTransformOp.TYPE_NEAREST_NEIGHBOR)
+                    .filter(raster(p, y0, y1), raster(flipped, p.width, rows));
+            for (int y = 0; y < rows; y++) {
+                System.arraycopy(flipped, y * p.width, p.data, p.index(0, y0 + y), p.width);
+            }
+        } finally {
+            RasterPool.release(flipped);
+        }
+    }
+
+    // The four clamped differences are convolved over the band plus a row on either side,
+    // since ConvolveOp zeroes the pixels where its kernel does not fit; the frame is written as
+    // in Filters.showBorders.
+    private static void showBorders(PixelBuffer src, PixelBuffer dst, int y0, int y1, double threshold) {
+        int width = src.width;
+        int white = 0xFFFFFFFF & src.storeMask;
+        int black = 0xFF000000 & src.storeMask;
+        int first = Math.max(y0, 1);
+        int last = Math.min(y1, src.height - 1);
+        for (int y = y0; y < y1; y++) {
+            if (y < first || y >= last || width < 3) {
+                int o = dst.index(0, y);
+                if (src.hasAlpha) {
+                    System.arraycopy(src.data, src.index(0, y), dst.data, o, width);
+                } else {
+                    Arrays.fill(dst.data, o, o + width, 0);
+                }
+            }
+        }
+        if (first >= last || width < 3) {
+            return;
+        }
+        int rows = last + 2 - first;
+        Raster source = raster(src, first - 1, last + 1);
+        int[][] differences = new int[DIFFERENCES.length][];
+        try {
+            for (int k = 0; k < DIFFERENCES.length; k++) {
+                differences[k] = RasterPool.acquire(width * rows);
+                DIFFERENCES[k].filter(source, raster(differences[k], width, rows));
+            }
+            for (int y = first; y < last; y++) {
+                int i = (y - first + 1) * width + 1;
+                int o = dst.index(0, y);
+                dst.data[o] = src.hasAlpha ? src.data[src.index(0, y)] : 0;
+                dst.data[o + width - 1] = src.hasAlpha ? src.data[src.index(width - 1, y)] : 0;
+                o++;
+                for (int x = 1; x < width - 1; x++, i++, o++) {
+                    int edgeColor = 0;
+                    for (int[] difference : differences) {
+                        int d = difference[i];
+                        edgeColor += ((d >> 16) & 0xFF) + ((d >> 8) & 0xFF) + (d & 0xFF);
+                    }
+                    dst.data[o] = edgeColor > threshold ? black : white;
+                }
+            }
+        } finally {
+            for (int[] difference : differences) {
+                if (difference != null) {
+                    RasterPool.release(difference);
+                }
+            }
+        }
+    }
+}
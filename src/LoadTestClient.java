@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Drives a FilterServer with the same image from many virtual threads and reports latency
+// percentiles for the requests that were served, plus how many were turned away with 429.
+public class LoadTestClient {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: --loadtest <server url> <image> <filter chain> [requests] [concurrency] [format]");
+            System.err.println("  e.g. --loadtest http://localhost:8765 photo.jpg \"Grayscale,Show Borders\" 200 16");
+            System.exit(2);
+        }
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        int concurrency = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+        String format = args.length > 5 ? args[5] : "png";
+        URI uri = URI.create(args[0].replaceAll("/+$", "") + "/filter?chain="
+                + URLEncoder.encode(args[2], StandardCharsets.UTF_8) + "&format=" + format);
+        new LoadTestClient().run(uri, Files.readAllBytes(Path.of(args[1])), requests, concurrency);
+    }
+
+    public void run(URI uri, byte[] image, int requests, int concurrency) throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor()).build();
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Semaphore inFlight = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < requests; i++) {
+                inFlight.acquire();
+                workers.submit(() -> {
+                    try {
+                        long sent = System.nanoTime();
+                        HttpResponse<Void> response = client.send(
+                                HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofByteArray(image)).build(),
+                                HttpResponse.BodyHandlers.discarding());
+                        if (response.statusCode() == 200) {
+                            latencies.add(System.nanoTime() - sent);
+                        } else if (response.statusCode() == 429) {
+                            rejected.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        System.out.printf(Locale.ROOT, "%d requests, %d concurrent: %d ok, %d rejected (429), %d failed in %.2f s (%.1f ok/s)%n",
+                requests, concurrency, sorted.size(), rejected.get(), failed.get(), seconds, sorted.size() / seconds);
+        if (!sorted.isEmpty()) {
+            System.out.printf(Locale.ROOT, "latency p50=%.1f ms p99=%.1f ms max=%.1f ms%n",
+                    percentile(sorted, 50) / 1e6, percentile(sorted, 99) / 1e6, sorted.get(sorted.size() - 1) / 1e6);
+        }
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        int rank = (int) Math.ceil(p / 100 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+}
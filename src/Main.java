@@ -1,5 +1,27 @@
+import java.util.Arrays;
+
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            BatchProcessor.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--stream")) {
+            System.setProperty("java.awt.headless", "true");
+            StripProcessor.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--serve")) {
+            System.setProperty("java.awt.headless", "true");
+            FilterServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--loadtest")) {
+            LoadTestClient.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // Times the filter backends while the window comes up, rather than on the first Apply.
+        Thread.ofPlatform().daemon().name("filter-calibration").start(FilterBackends::calibrateAll);
         new MainWindow();
     }
 }
@@ -12,6 +12,7 @@ public class MainWindow extends JFrame {
 
         imagePanel = new ImagePanel(this);
         add(imagePanel, BorderLayout.CENTER);
+        add(imagePanel.getThumbnailStrip(), BorderLayout.NORTH);
 
         setVisible(true);
     }
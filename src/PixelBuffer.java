@@ -0,0 +1,77 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+public class PixelBuffer {
+    public final int[] data;
+    public final int offset;
+    public final int stride;
+    public final int width;
+    public final int height;
+    public final boolean direct;
+    public final boolean hasAlpha;
+    // Bits that survive a setRGB on the backing image (INT_RGB drops the alpha byte).
+    public final int storeMask;
+    private final BufferedImage image;
+
+    private PixelBuffer(BufferedImage image, int[] data, int offset, int stride, boolean direct, int storeMask) {
+        this(image, data, offset, stride, image.getWidth(), image.getHeight(), direct,
+                image.getColorModel().hasAlpha(), storeMask);
+    }
+
+    private PixelBuffer(BufferedImage image, int[] data, int offset, int stride, int width, int height,
+                        boolean direct, boolean hasAlpha, int storeMask) {
+        this.image = image;
+        this.data = data;
+        this.offset = offset;
+        this.stride = stride;
+        this.width = width;
+        this.height = height;
+        this.direct = direct;
+        this.hasAlpha = hasAlpha;
+        this.storeMask = storeMask;
+    }
+
+    public static PixelBuffer of(BufferedImage image) {
+        int type = image.getType();
+        WritableRaster raster = image.getRaster();
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            int stride = sampleModel.getScanlineStride();
+            int offset = buffer.getOffset()
+                    - raster.getSampleModelTranslateY() * stride
+                    - raster.getSampleModelTranslateX();
+            int mask = type == BufferedImage.TYPE_INT_RGB ? 0x00FFFFFF : 0xFFFFFFFF;
+            return new PixelBuffer(image, buffer.getData(), offset, stride, true, mask);
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] data = image.getRGB(0, 0, width, height, null, 0, width);
+        return new PixelBuffer(image, data, 0, width, false, 0xFFFFFFFF);
+    }
+
+    // A scratch buffer with the size and pixel format of like, backed by data (no row padding).
+    public static PixelBuffer wrap(int[] data, PixelBuffer like) {
+        return new PixelBuffer(null, data, 0, like.width, like.width, like.height, true, like.hasAlpha, like.storeMask);
+    }
+
+    // A scratch buffer of width x height in the pixel format of like.
+    public static PixelBuffer sample(int[] data, int width, int height, PixelBuffer like) {
+        return new PixelBuffer(null, data, 0, width, width, height, true, like.hasAlpha, like.storeMask);
+    }
+
+    public int index(int x, int y) {
+        return offset + y * stride + x;
+    }
+
+    public void commit() {
+        if (!direct) {
+            image.setRGB(0, 0, width, height, data, 0, stride);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import java.awt.*;
+import java.util.List;
+
+// A filter the engine can schedule. Implementations are found with ServiceLoader (see
+// META-INF/services/PixelFilter) and describe themselves through their traits, which Filters
+// uses to pick a strategy: fused into a per-pixel pass, vectorized, split into row bands, run
+// against a separate destination buffer, or counted first and then mapped by lookup tables.
+public interface PixelFilter {
+    enum Kind {
+        // Each output pixel depends only on the same input pixel.
+        POINTWISE,
+        // Each output pixel depends on input pixels within getRadius().
+        NEIGHBORHOOD,
+        // Pixels are moved around rather than recomputed.
+        GEOMETRIC,
+        // Each output pixel depends on the same input pixel and on the histogram of the whole
+        // input, which picks the per-pixel mapping. Such filters implement StatisticalFilter.
+        STATISTICAL
+    }
+
+    String getName();
+
+    Kind getKind();
+
+    // How far, in pixels, a NEIGHBORHOOD filter reads around the pixel it writes.
+    default int getRadius(FilterSettings settings) {
+        return 0;
+    }
+
+    // True if apply can write the pixels it reads, i.e. it may be given dst == src.
+    boolean isInPlaceSafe();
+
+    // True if the alpha byte of every pixel survives the filter unchanged.
+    boolean preservesAlpha();
+
+    default List<FilterParameter> getParameters() {
+        return List.of();
+    }
+
+    // Every band passed to apply starts on a multiple of this many rows (and, when an image is
+    // filtered piece by piece, columns). Filters whose rows depend on other rows beyond
+    // getRadius() return Integer.MAX_VALUE to get a single band.
+    default int getBandAlignment(FilterSettings settings) {
+        return 1;
+    }
+
+    // The part of a width x height input that the pixels of target are computed from, used to
+    // filter large images one tile at a time. Filtering a buffer that holds exactly this part
+    // yields target at its offset within the buffer, or for GEOMETRIC filters as the whole
+    // buffer (which must then be the size of target).
+    default Rectangle getSourceRect(Rectangle target, int width, int height, FilterSettings settings) {
+        int align = getBandAlignment(settings);
+        if (align > width || align > height) {
+            return new Rectangle(0, 0, width, height);
+        }
+        int radius = getRadius(settings);
+        int x0 = Math.max(0, target.x - radius) / align * align;
+        int y0 = Math.max(0, target.y - radius) / align * align;
+        int x1 = Math.min(width, target.x + target.width + radius);
+        int y1 = Math.min(height, target.y + target.height + radius);
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    // Adds this filter to a fused per-pixel pass; returns false if it cannot be expressed
+    // as one, which ends the fused run.
+    default boolean fuse(PointOp op, FilterSettings settings) {
+        return false;
+    }
+
+    // Filters rows [y0, y1) from src into dst. Unless the filter is in-place safe, dst is a
+    // separate buffer of the same size and every pixel of those rows must be written.
+    void apply(PixelBuffer src, PixelBuffer dst, int y0, int y1, FilterSettings settings);
+}
@@ -0,0 +1,114 @@
+// A run of per-pixel filters folded into one pass: every input channel is routed through a
+// channel permutation and a per-channel lookup table, optionally averaged into a single gray
+// value, and that gray value is mapped through a second set of tables.
+public class PointOp {
+    private static final int[] SHIFT = {16, 8, 0};
+
+    private final int[] source = {0, 1, 2};
+    private final int[][] pre = {identity(), identity(), identity()};
+    private int[][] post;
+    private int alpha;
+    private int length;
+
+    private static int[] identity() {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = v;
+        }
+        return table;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // Folds filter into this op, or returns false if it has no per-pixel form.
+    public boolean then(PixelFilter filter, FilterSettings settings) {
+        if (!filter.fuse(this, settings)) {
+            return false;
+        }
+        length++;
+        return true;
+    }
+
+    // Sets the alpha byte of every output pixel; each filter overrides what came before.
+    public void setAlpha(int alpha) {
+        this.alpha = alpha;
+    }
+
+    public void lut(int[] r, int[] g, int[] b) {
+        int[][] tables = post != null ? post : pre;
+        int[][] next = {r, g, b};
+        for (int c = 0; c < 3; c++) {
+            int[] composed = new int[256];
+            for (int v = 0; v < 256; v++) {
+                composed[v] = next[c][tables[c][v]];
+            }
+            tables[c] = composed;
+        }
+    }
+
+    // New channel c takes the value old channel from[c] had.
+    public void permute(int fromR, int fromG, int fromB) {
+        int[] from = {fromR, fromG, fromB};
+        int[][] tables = post != null ? post : pre;
+        int[][] old = tables.clone();
+        for (int c = 0; c < 3; c++) {
+            tables[c] = old[from[c]];
+        }
+        if (post == null) {
+            int[] oldSource = source.clone();
+            for (int c = 0; c < 3; c++) {
+                source[c] = oldSource[from[c]];
+            }
+        }
+    }
+
+    // After the first average all channels hold the same gray value, so any further average
+    // collapses into a single table on that value.
+    public void average() {
+        if (post == null) {
+            post = new int[][]{identity(), identity(), identity()};
+            return;
+        }
+        int[] gray = new int[256];
+        for (int v = 0; v < 256; v++) {
+            gray[v] = (post[0][v] + post[1][v] + post[2][v]) / 3;
+        }
+        post = new int[][]{gray, gray, gray};
+    }
+
+    public void apply(PixelBuffer p, int y0, int y1) {
+        int[] data = p.data;
+        int[] r0 = pre[0];
+        int[] g0 = pre[1];
+        int[] b0 = pre[2];
+        int rShift = SHIFT[source[0]];
+        int gShift = SHIFT[source[1]];
+        int bShift = SHIFT[source[2]];
+        int a = alpha & p.storeMask;
+
+        for (int y = y0; y < y1; y++) {
+            int i = p.index(0, y);
+            int end = i + p.width;
+            if (post == null) {
+                for (; i < end; i++) {
+                    int rgb = data[i];
+                    data[i] = a | (r0[(rgb >> rShift) & 0xFF] << 16)
+                            | (g0[(rgb >> gShift) & 0xFF] << 8)
+                            | b0[(rgb >> bShift) & 0xFF];
+                }
+            } else {
+                int[] r1 = post[0];
+                int[] g1 = post[1];
+                int[] b1 = post[2];
+                for (; i < end; i++) {
+                    int rgb = data[i];
+                    int gray = (r0[(rgb >> rShift) & 0xFF] + g0[(rgb >> gShift) & 0xFF]
+                            + b0[(rgb >> bShift) & 0xFF]) / 3;
+                    data[i] = a | (r1[gray] << 16) | (g1[gray] << 8) | b1[gray];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+// Preview editing: ImagePanel edits a screen-sized proxy and this class remembers where each
+// edit lands on the full-resolution image, so the full result can be rendered later by
+// replaying the edits from the original. Images too large to decode at once are backed by a
+// TiledImage instead; their edits are only replayed when the image is saved.
+public class ProxySession {
+    private final BufferedImage fullOriginal;
+    private final TiledImage tiled;
+    private final List<EditHistory.Edit> prefix;
+    // Like prefix, only touched on the EDT; workers get a Replay instead.
+    private final Map<EditHistory.Edit, Rectangle> fullRegions = new IdentityHashMap<>();
+    private final double scale;
+
+    private SwingWorker<BufferedImage, Void> renderJob;
+    private List<EditHistory.Edit> renderedEdits;
+    private BufferedImage rendered;
+
+    // The edits a render replays, each with the region it covers on the full-resolution image.
+    // It is taken on the EDT when a render, save or switch back is started, so the worker
+    // never reads prefix or fullRegions while the EDT changes them.
+    public static class Replay {
+        private final List<FilterChain> chains = new ArrayList<>();
+        private final List<Rectangle> regions = new ArrayList<>();
+    }
+
+    // prefix holds the full-resolution edits made before preview editing was switched on.
+    public ProxySession(BufferedImage fullOriginal, List<EditHistory.Edit> prefix, int maxWidth, int maxHeight) {
+        this.fullOriginal = fullOriginal;
+        this.tiled = null;
+        this.prefix = new ArrayList<>(prefix);
+        this.scale = Math.min(1.0, Math.min((double) maxWidth / fullOriginal.getWidth(),
+                (double) maxHeight / fullOriginal.getHeight()));
+    }
+
+    public ProxySession(TiledImage tiled, int maxWidth, int maxHeight) {
+        this.fullOriginal = null;
+        this.tiled = tiled;
+        this.prefix = new ArrayList<>();
+        this.scale = Math.min(1.0, Math.min((double) maxWidth / tiled.getWidth(),
+                (double) maxHeight / tiled.getHeight()));
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    public BufferedImage getFullOriginal() {
+        return fullOriginal;
+    }
+
+    public boolean isTiled() {
+        return tiled != null;
+    }
+
+    public int getFullWidth() {
+        return tiled != null ? tiled.getWidth() : fullOriginal.getWidth();
+    }
+
+    public int getFullHeight() {
+        return tiled != null ? tiled.getHeight() : fullOriginal.getHeight();
+    }
+
+    // The proxy of the untouched tiled image, built from a subsampled decode.
+    public BufferedImage createTiledProxy() throws IOException {
+        int width = Math.max(1, (int) Math.round(tiled.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(tiled.getHeight() * scale));
+        return toProxy(tiled.readOverview(width, height));
+    }
+
+    public BufferedImage toProxy(BufferedImage full) {
+        int width = Math.max(1, (int) Math.round(getFullWidth() * scale));
+        int height = Math.max(1, (int) Math.round(getFullHeight() * scale));
+        BufferedImage proxy = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = proxy.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(full, 0, 0, width, height, null);
+        g.dispose();
+        return proxy;
+    }
+
+    public void mapEdit(EditHistory.Edit edit, Rectangle fullRegion) {
+        fullRegions.put(edit, new Rectangle(fullRegion));
+    }
+
+    // Clear Filters goes back to the original, which drops the pre-session edits as well.
+    public void clearPrefix() {
+        prefix.clear();
+    }
+
+    // The prefix followed by edits, the proxy edits currently applied, in order. Call on the EDT.
+    public Replay snapshot(List<EditHistory.Edit> edits) {
+        Replay replay = new Replay();
+        List<EditHistory.Edit> all = new ArrayList<>(prefix);
+        all.addAll(edits);
+        for (EditHistory.Edit edit : all) {
+            replay.chains.add(edit.getChain().atScale(1.0));
+            replay.regions.add(new Rectangle(fullRegions.getOrDefault(edit, edit.getRegion())));
+        }
+        return replay;
+    }
+
+    // Replays the session from the full-resolution original.
+    public BufferedImage render(Replay replay, FilterProgress progress) {
+        BufferedImage full = ImagePanel.copyImage(fullOriginal);
+        replay(full, replay, null, progress);
+        return full;
+    }
+
+    // Like render, but records every replayed edit in history, which is reset to the original.
+    public BufferedImage renderInto(EditHistory history, Replay replay) {
+        BufferedImage full = ImagePanel.copyImage(fullOriginal);
+        history.reset(fullOriginal);
+        replay(full, replay, history, FilterProgress.NONE);
+        return full;
+    }
+
+    // Replays the session onto the tiled image tile by tile and returns it, ready to be written.
+    public TiledImage renderTiled(Replay replay, FilterProgress progress) throws IOException {
+        tiled.revert();
+        for (int i = 0; i < replay.chains.size(); i++) {
+            tiled.apply(replay.chains.get(i), replay.regions.get(i), progress);
+        }
+        return tiled;
+    }
+
+    private void replay(BufferedImage full, Replay replay, EditHistory history, FilterProgress progress) {
+        for (int i = 0; i < replay.chains.size(); i++) {
+            Rectangle region = replay.regions.get(i);
+            FilterChain chain = replay.chains.get(i);
+            if (history != null) {
+                history.record(full, region, chain);
+            }
+            chain.apply(full.getSubimage(region.x, region.y, region.width, region.height), progress);
+            if (history != null) {
+                history.committed(full);
+            }
+        }
+    }
+
+    // Starts rendering edits off the EDT, replacing any render still in progress. Tiled
+    // sessions are rendered on save instead.
+    public void renderInBackground(List<EditHistory.Edit> edits) {
+        if (tiled != null) {
+            return;
+        }
+        if (renderJob != null) {
+            renderJob.cancel(false);
+        }
+        List<EditHistory.Edit> snapshot = new ArrayList<>(edits);
+        Replay replay = snapshot(edits);
+        SwingWorker<BufferedImage, Void> job = new SwingWorker<>() {
+            @Override
+            protected BufferedImage doInBackground() {
+                SwingWorker<BufferedImage, Void> worker = this;
+                return render(replay, new FilterProgress() {
+                    @Override
+                    public boolean isCancelled() {
+                        return worker.isCancelled();
+                    }
+
+                    @Override
+                    public void rowsCompleted(int rows) {
+                    }
+                });
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled() || renderJob != this) {
+                    return;
+                }
+                try {
+                    rendered = get();
+                    renderedEdits = snapshot;
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                }
+                renderJob = null;
+            }
+        };
+        renderJob = job;
+        job.execute();
+    }
+
+    // The background result if it is up to date, otherwise null; a snapshot of edits can then
+    // be rendered on a worker, since render only reads it and the full-resolution original.
+    public BufferedImage getRendered(List<EditHistory.Edit> edits) {
+        return rendered != null && edits.equals(renderedEdits) ? rendered : null;
+    }
+
+    public void cancel() {
+        if (renderJob != null) {
+            renderJob.cancel(false);
+            renderJob = null;
+        }
+    }
+
+    // Cancels any render and releases the tile store of a tiled session.
+    public void close() {
+        cancel();
+        if (tiled != null) {
+            try {
+                tiled.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Recycles the int pixel arrays behind scratch buffers, work images, undo snapshots and cached
+// results, so repeated applies on images of the same size stop allocating image-sized memory.
+// Every pooled array holds one packed int per pixel, so arrays are keyed by pixel count; sizes
+// returned least recently are dropped first once idle arrays exceed -Dpool.budget.mb.
+//
+// Acquired arrays hold stale pixels, which may have been 0xAARRGGBB: an ARGB scratch buffer and
+// an INT_RGB image share the pool, so nothing can rely on the alpha byte of an acquired array
+// being zero. Whoever releases an array must not touch it afterwards.
+public class RasterPool {
+    private static final long BUDGET_BYTES = Long.getLong("pool.budget.mb", 256) * 1024 * 1024;
+    private static final LinkedHashMap<Integer, ArrayDeque<int[]>> IDLE = new LinkedHashMap<>(16, 0.75f, true);
+    private static long idleBytes;
+
+    public static int[] acquire(int length) {
+        synchronized (IDLE) {
+            ArrayDeque<int[]> idle = IDLE.get(length);
+            if (idle != null && !idle.isEmpty()) {
+                idleBytes -= (long) length * Integer.BYTES;
+                return idle.pop();
+            }
+        }
+        return new int[length];
+    }
+
+    public static void release(int[] array) {
+        long bytes = (long) array.length * Integer.BYTES;
+        if (array.length == 0 || bytes > BUDGET_BYTES) {
+            return;
+        }
+        synchronized (IDLE) {
+            Iterator<Map.Entry<Integer, ArrayDeque<int[]>>> eldest = IDLE.entrySet().iterator();
+            while (idleBytes + bytes > BUDGET_BYTES && eldest.hasNext()) {
+                Map.Entry<Integer, ArrayDeque<int[]>> entry = eldest.next();
+                idleBytes -= (long) entry.getKey() * Integer.BYTES * entry.getValue().size();
+                eldest.remove();
+            }
+            IDLE.computeIfAbsent(array.length, length -> new ArrayDeque<>()).push(array);
+            idleBytes += bytes;
+        }
+    }
+
+    // A scratch buffer the size and format of like, for filters that cannot run in place.
+    public static PixelBuffer scratch(PixelBuffer like) {
+        return PixelBuffer.wrap(acquire(like.width * like.height), like);
+    }
+
+    // An INT_RGB image over a pooled array; give it back with releaseImage.
+    public static BufferedImage acquireImage(int width, int height) {
+        DataBufferInt buffer = new DataBufferInt(acquire(width * height), width * height);
+        WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width,
+                new int[]{0xFF0000, 0xFF00, 0xFF}, new Point());
+        return new BufferedImage(RgbRenderedImage.COLOR_MODEL, raster, false, null);
+    }
+
+    public static void releaseImage(BufferedImage image) {
+        release(((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+    }
+
+    public static long getIdleBytes() {
+        synchronized (IDLE) {
+            return idleBytes;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// Filtered pixels keyed by what produced them: the fingerprint of the image state the region
+// was read from, the chain up to a pass boundary and the region. Every pass of a chain is
+// cached, so re-applying a chain, or any chain that starts with the same passes, on the same
+// state starts from the longest cached prefix.
+//
+// Entries live in memory up to -Dcache.budget.mb (LRU). With -Dcache.dir set, entries evicted
+// from memory are deflated into that directory, up to -Dcache.disk.mb, and read back on a hit.
+public class ResultCache {
+    private static final ResultCache INSTANCE = new ResultCache(
+            Long.getLong("cache.budget.mb", 256) * 1024 * 1024,
+            System.getProperty("cache.dir") == null ? null : Path.of(System.getProperty("cache.dir")),
+            Long.getLong("cache.disk.mb", 1024) * 1024 * 1024);
+
+    private static final class Key {
+        final long source;
+        final String chain;
+        final Rectangle region;
+
+        Key(long source, String chain, Rectangle region) {
+            this.source = source;
+            this.chain = chain;
+            this.region = new Rectangle(region);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && source == ((Key) o).source && chain.equals(((Key) o).chain)
+                    && region.equals(((Key) o).region);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, chain, region);
+        }
+
+        @Override
+        public String toString() {
+            return Long.toHexString(source) + " " + chain + " " + region.x + "," + region.y + ","
+                    + region.width + "x" + region.height;
+        }
+    }
+
+    private final long budgetBytes;
+    private final Path spillDir;
+    private final long diskBudgetBytes;
+    private final LinkedHashMap<Key, int[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    // Evicted entries being deflated and written out, and spilled entries being read back and
+    // inflated; both happen outside the lock.
+    private final Set<Key> spilling = new HashSet<>();
+    private final Set<Key> loading = new HashSet<>();
+    private long memoryBytes;
+    private long diskBytes;
+    private long hits;
+    private long diskHits;
+    private long misses;
+
+    ResultCache(long budgetBytes, Path spillDir, long diskBudgetBytes) {
+        this.budgetBytes = budgetBytes;
+        this.spillDir = spillDir;
+        this.diskBudgetBytes = diskBudgetBytes;
+        if (spillDir != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::clear));
+        }
+    }
+
+    public static ResultCache getInstance() {
+        return INSTANCE;
+    }
+
+    // A 64-bit hash of the pixels, used as the fingerprint of a freshly loaded image.
+    public static long fingerprint(BufferedImage image) {
+        PixelBuffer p = PixelBuffer.of(image);
+        long h = 0x9E3779B97F4A7C15L ^ ((long) p.width << 32 | p.height);
+        for (int y = 0; y < p.height; y++) {
+            int row = p.index(0, y);
+            for (int x = 0; x < p.width; x++) {
+                h = (h ^ (p.data[row + x] & 0xFFFFFFL)) * 0x100000001B3L;
+            }
+        }
+        return mix(h);
+    }
+
+    // The fingerprint of the state reached by applying chain to region of the source state.
+    // States are fingerprinted by how they were derived, so no pixels need hashing after load.
+    public static long derive(long source, FilterChain chain, Rectangle region) {
+        long h = source;
+        for (byte b : describe(chain).getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ b) * 0x100000001B3L;
+        }
+        h = (h ^ region.x) * 0x100000001B3L;
+        h = (h ^ region.y) * 0x100000001B3L;
+        h = (h ^ region.width) * 0x100000001B3L;
+        h = (h ^ region.height) * 0x100000001B3L;
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static String describe(FilterChain chain) {
+        return chain + " @" + chain.getScale();
+    }
+
+    // Applies chain to work, which holds region of the state with the given fingerprint.
+    // Passes already cached are skipped; the result of every pass computed is cached unless
+    // progress reports the run as cancelled.
+    public void apply(long source, Rectangle region, FilterChain chain, BufferedImage work, FilterProgress progress) {
+        List<FilterChain> passes = chain.passes();
+        Key[] keys = new Key[passes.size()];
+        StringBuilder prefix = new StringBuilder();
+        for (int k = 0; k < passes.size(); k++) {
+            prefix.append(k == 0 ? "" : " > ").append(passes.get(k));
+            keys[k] = new Key(source, prefix + " @" + chain.getScale(), region);
+        }
+        Rectangle bounds = new Rectangle(0, 0, work.getWidth(), work.getHeight());
+        // A region larger than the whole budget would only evict everything else, so it is
+        // neither copied nor kept.
+        boolean cacheable = (long) bounds.width * bounds.height * Integer.BYTES <= budgetBytes;
+        int start = 0;
+        for (int k = passes.size() - 1; k >= 0 && start == 0 && cacheable; k--) {
+            if (read(keys[k], work, bounds)) {
+                start = k + 1;
+            }
+        }
+        synchronized (this) {
+            if (start > 0) {
+                hits++;
+            } else if (!passes.isEmpty()) {
+                misses++;
+            }
+        }
+        for (int k = start; k < passes.size(); k++) {
+            passes.get(k).apply(work, progress);
+            if (progress.isCancelled()) {
+                return;
+            }
+            if (cacheable) {
+                put(keys[k], EditHistory.readRegion(work, bounds));
+            }
+        }
+    }
+
+    // Copies a memory entry into work while holding the lock, since an evicted array goes back
+    // to RasterPool and may be reused at once. A spilled entry is claimed under the lock and
+    // read back without it; it is ours until it is put back in memory. A key another thread
+    // is already reading back counts as a miss rather than waiting for it.
+    private boolean read(Key key, BufferedImage work, Rectangle bounds) {
+        synchronized (this) {
+            int[] pixels = memory.get(key);
+            if (pixels != null) {
+                EditHistory.writeRegion(work, bounds, pixels);
+                return true;
+            }
+            if (disk.get(key) == null || !loading.add(key)) {
+                return false;
+            }
+        }
+        int[] spilled = null;
+        boolean unreadable = false;
+        try {
+            spilled = readSpilled(key);
+        } catch (IOException e) {
+            unreadable = true;
+        }
+        synchronized (this) {
+            loading.remove(key);
+            if (unreadable) {
+                Long packedBytes = disk.remove(key);
+                if (packedBytes != null) {
+                    diskBytes -= packedBytes;
+                }
+            }
+            if (spilled == null) {
+                return false;
+            }
+            diskHits++;
+        }
+        EditHistory.writeRegion(work, bounds, spilled);
+        put(key, spilled);
+        return true;
+    }
+
+    // Victims are picked under the lock; those going to disk are deflated and written once it
+    // is released, so other threads do not wait on the disk.
+    private void put(Key key, int[] pixels) {
+        Map<Key, int[]> evicted = new LinkedHashMap<>();
+        synchronized (this) {
+            int[] old = memory.put(key, pixels);
+            if (old != null) {
+                memoryBytes -= (long) old.length * Integer.BYTES;
+                RasterPool.release(old);
+            }
+            memoryBytes += (long) pixels.length * Integer.BYTES;
+            Iterator<Map.Entry<Key, int[]>> eldest = memory.entrySet().iterator();
+            while (memoryBytes > budgetBytes && eldest.hasNext()) {
+                Map.Entry<Key, int[]> entry = eldest.next();
+                memoryBytes -= (long) entry.getValue().length * Integer.BYTES;
+                eldest.remove();
+                if (spillDir != null && entry.getKey() != key && !disk.containsKey(entry.getKey())
+                        && spilling.add(entry.getKey())) {
+                    evicted.put(entry.getKey(), entry.getValue());
+                } else {
+                    RasterPool.release(entry.getValue());
+                }
+            }
+        }
+        for (Map.Entry<Key, int[]> entry : evicted.entrySet()) {
+            spill(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private Path spillFile(Key key) {
+        return spillDir.resolve(Long.toHexString(key.source) + "-" + Integer.toHexString(key.hashCode()) + ".cache");
+    }
+
+    // Called without the lock, for a key put in spilling. The file starts with the key, so a
+    // file name collision reads as a miss.
+    private void spill(Key key, int[] pixels) {
+        byte[] packed = EditHistory.pack(pixels);
+        int length = pixels.length;
+        RasterPool.release(pixels);
+        boolean written = false;
+        try {
+            Files.createDirectories(spillDir);
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(spillFile(key)))) {
+                out.writeUTF(key.toString());
+                out.writeInt(length);
+                out.write(packed);
+            }
+            written = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            // A clear while the file was written drops it along with the rest.
+            if (!spilling.remove(key)) {
+                if (written) {
+                    delete(key);
+                }
+                return;
+            }
+            if (written) {
+                disk.put(key, (long) packed.length);
+                diskBytes += packed.length;
+                Iterator<Map.Entry<Key, Long>> eldest = disk.entrySet().iterator();
+                while (diskBytes > diskBudgetBytes && eldest.hasNext()) {
+                    Map.Entry<Key, Long> entry = eldest.next();
+                    diskBytes -= entry.getValue();
+                    eldest.remove();
+                    delete(entry.getKey());
+                }
+            }
+        }
+    }
+
+    private void delete(Key key) {
+        try {
+            Files.deleteIfExists(spillFile(key));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Called without the lock, for a key put in loading. Null if the file belongs to another
+    // key; an IOException means it is gone or damaged.
+    private int[] readSpilled(Key key) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(spillFile(key)))) {
+            if (!in.readUTF().equals(key.toString())) {
+                return null;
+            }
+            int length = in.readInt();
+            return EditHistory.unpack(in.readAllBytes(), length);
+        }
+    }
+
+    // Applies that started from a cached pass, including those read back from disk.
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    public synchronized void clear() {
+        for (int[] pixels : memory.values()) {
+            RasterPool.release(pixels);
+        }
+        memory.clear();
+        memoryBytes = 0;
+        for (Key key : disk.keySet()) {
+            delete(key);
+        }
+        disk.clear();
+        spilling.clear();
+        loading.clear();
+        diskBytes = 0;
+    }
+}
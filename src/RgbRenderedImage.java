@@ -0,0 +1,134 @@
+import java.awt.*;
+import java.awt.image.ColorModel;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Vector;
+
+// Base for RenderedImages whose INT_RGB pixels are produced on request by getData(Rectangle)
+// rather than held in one raster, so ImageIO writers can pull them piece by piece.
+public abstract class RgbRenderedImage implements RenderedImage {
+    static final ColorModel COLOR_MODEL = new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
+
+    private final int width;
+    private final int height;
+    private final int tileWidth;
+    private final int tileHeight;
+
+    protected RgbRenderedImage(int width, int height, int tileWidth, int tileHeight) {
+        this.width = width;
+        this.height = height;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+    }
+
+    @Override
+    public abstract Raster getData(Rectangle rect);
+
+    @Override
+    public Vector<RenderedImage> getSources() {
+        return null;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return null;
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return COLOR_MODEL;
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return COLOR_MODEL.createCompatibleSampleModel(tileWidth, tileHeight);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getMinX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinY() {
+        return 0;
+    }
+
+    @Override
+    public int getNumXTiles() {
+        return (width + tileWidth - 1) / tileWidth;
+    }
+
+    @Override
+    public int getNumYTiles() {
+        return (height + tileHeight - 1) / tileHeight;
+    }
+
+    @Override
+    public int getMinTileX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinTileY() {
+        return 0;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return 0;
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        return getData(new Rectangle(tileX * tileWidth, tileY * tileHeight, tileWidth, tileHeight));
+    }
+
+    @Override
+    public Raster getData() {
+        return getData(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public WritableRaster copyData(WritableRaster raster) {
+        if (raster == null) {
+            return (WritableRaster) getData();
+        }
+        Rectangle r = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+        raster.setRect(getData(r));
+        return raster;
+    }
+}
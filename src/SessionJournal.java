@@ -0,0 +1,376 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntToLongFunction;
+import java.util.zip.CRC32;
+
+// An append-only log of the edits made to one image file, kept on local disk so a session
+// survives closing the app or a crash. Each applied edit (its chain spec and region), undo and
+// redo is appended and forced to disk. The states EditHistory checkpoints are also written as
+// raw rasters that are memory-mapped when read back. Reopening the file restores the full
+// undo/redo history and rebuilds the current state from the nearest checkpoint, replaying only
+// the edits after it.
+//
+// Records are length-prefixed and carry a CRC, so one torn by a crash ends the replay there.
+// Sessions live under -Djournal.dir, one directory per image path, with at most
+// -Djournal.checkpoints raster checkpoints each. A journal whose original no longer matches
+// the file, e.g. after saving over it, is discarded.
+public class SessionJournal {
+    private static final Path DIR = System.getProperty("journal.dir") != null
+            ? Path.of(System.getProperty("journal.dir"))
+            : Path.of(System.getProperty("user.home"), ".cache", "image-editor", "sessions");
+    private static final int MAX_CHECKPOINTS = Integer.getInteger("journal.checkpoints", 4);
+    private static final int MAGIC = 0x464A524E;
+    private static final int CHECKPOINT_MAGIC = 0x464A4350;
+    // Magic, original fingerprint, width, height.
+    private static final int HEADER_BYTES = 4 + 8 + 4 + 4;
+    // Magic, state, fingerprint, width, height.
+    private static final int CHECKPOINT_HEADER_BYTES = 4 + 4 + 8 + 4 + 4;
+    private static final byte EDIT = 'E';
+    private static final byte UNDO = 'U';
+    private static final byte REDO = 'R';
+    // One writer for all journals keeps appends in order and off the EDT; it is drained on exit.
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().daemon().name("session-journal").factory());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            WRITER.shutdown();
+            try {
+                WRITER.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+    }
+
+    private final Path dir;
+    private final Path log;
+    // State -> fingerprint of the checkpoints on disk.
+    private final ConcurrentSkipListMap<Integer, Long> checkpoints = new ConcurrentSkipListMap<>();
+    private boolean started;
+    // Only touched by the writer thread.
+    private long validBytes;
+    private boolean trimmed;
+    private boolean failed;
+
+    public SessionJournal(File file) {
+        String key = UUID.nameUUIDFromBytes(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8)).toString();
+        this.dir = DIR.resolve(key);
+        this.log = dir.resolve("journal");
+    }
+
+    // Reads back the session journaled for file onto its freshly decoded original. Returns the
+    // current state with history holding the edits, or null if there is nothing to restore; a
+    // journal for a different original is deleted.
+    public static BufferedImage restore(File file, BufferedImage original, EditHistory history) {
+        SessionJournal journal = new SessionJournal(file);
+        if (!Files.isRegularFile(journal.log)) {
+            return null;
+        }
+        FilterMetrics.Sample sample = FilterMetrics.begin("restoreSession");
+        List<EditHistory.Edit> edits = new ArrayList<>();
+        int cursor = 0;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(journal.log))) {
+            int magic = in.readInt();
+            long fingerprint = in.readLong();
+            int width = in.readInt();
+            int height = in.readInt();
+            history.reset(original);
+            if (magic != MAGIC || width != original.getWidth() || height != original.getHeight()
+                    || fingerprint != history.getFingerprint()) {
+                journal.discard();
+                return null;
+            }
+            Rectangle bounds = new Rectangle(0, 0, width, height);
+            long valid = HEADER_BYTES;
+            byte[] payload;
+            while ((payload = readRecord(in)) != null) {
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = record.readByte();
+                if (type == EDIT) {
+                    FilterChain chain;
+                    try {
+                        chain = FilterChain.parse(record.readUTF());
+                    } catch (IllegalArgumentException e) {
+                        break;
+                    }
+                    Rectangle region = new Rectangle(record.readInt(), record.readInt(), record.readInt(), record.readInt());
+                    if (region.isEmpty() || !bounds.contains(region)) {
+                        break;
+                    }
+                    edits.subList(cursor, edits.size()).clear();
+                    edits.add(new EditHistory.Edit(chain, region));
+                    cursor++;
+                } else if (type == UNDO) {
+                    cursor = Math.max(0, cursor - 1);
+                } else if (type == REDO) {
+                    cursor = Math.min(edits.size(), cursor + 1);
+                } else {
+                    break;
+                }
+                valid += Integer.BYTES + payload.length + Integer.BYTES;
+            }
+            journal.started = true;
+            journal.validBytes = valid;
+            journal.scanCheckpoints();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (edits.isEmpty()) {
+            return null;
+        }
+        BufferedImage current = history.restore(edits, cursor, journal);
+        FilterMetrics.end(sample, (long) original.getWidth() * original.getHeight());
+        return current;
+    }
+
+    // The payload of the next record, or null at the end of the log or at a torn record.
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > 1 << 20) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            int crc = in.readInt();
+            CRC32 check = new CRC32();
+            check.update(payload);
+            return (int) check.getValue() == crc ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void scanCheckpoints() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "checkpoint-*.raw")) {
+            for (Path file : files) {
+                try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+                    if (in.readInt() == CHECKPOINT_MAGIC) {
+                        int state = in.readInt();
+                        checkpoints.put(state, in.readLong());
+                    }
+                } catch (IOException e) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    // Begins a new session for an original, replacing whatever was journaled for the file.
+    public void start(long originalFingerprint, int width, int height) {
+        started = true;
+        checkpoints.clear();
+        submit(() -> {
+            Files.createDirectories(dir);
+            deleteCheckpoints(Integer.MIN_VALUE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putLong(originalFingerprint).putInt(width).putInt(height).flip();
+            validBytes = 0;
+            trimmed = false;
+            write(header);
+        });
+    }
+
+    // Edit reached state; checkpoints of any states from there on belong to a discarded branch.
+    public void edit(FilterChain chain, Rectangle region, int state) {
+        checkpoints.tailMap(state, true).clear();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(EDIT);
+            out.writeUTF(chain.toSpec());
+            out.writeInt(region.x);
+            out.writeInt(region.y);
+            out.writeInt(region.width);
+            out.writeInt(region.height);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        submit(() -> {
+            deleteCheckpoints(state);
+            append(bytes.toByteArray());
+        });
+    }
+
+    public void undo() {
+        submit(() -> append(new byte[]{UNDO}));
+    }
+
+    public void redo() {
+        submit(() -> append(new byte[]{REDO}));
+    }
+
+    // Clear Filters: the log goes back to just its header.
+    public void clear() {
+        checkpoints.clear();
+        submit(() -> {
+            deleteCheckpoints(Integer.MIN_VALUE);
+            validBytes = HEADER_BYTES;
+            trimmed = false;
+            write(ByteBuffer.allocate(0));
+        });
+    }
+
+    // Writes pixels (a RasterPool array, released once written) as the checkpoint of state.
+    public void checkpoint(int state, long fingerprint, int[] pixels, int width, int height) {
+        submit(() -> {
+            try {
+                writeCheckpoint(state, fingerprint, pixels, width, height);
+            } finally {
+                RasterPool.release(pixels);
+            }
+        });
+    }
+
+    private void writeCheckpoint(int state, long fingerprint, int[] pixels, int width, int height) throws IOException {
+        long bytes = CHECKPOINT_HEADER_BYTES + (long) width * height * Integer.BYTES;
+        if (bytes > Integer.MAX_VALUE) {
+            return;
+        }
+        Path temp = dir.resolve("checkpoint-" + state + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer mapped = out.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            mapped.putInt(CHECKPOINT_MAGIC).putInt(state).putLong(fingerprint).putInt(width).putInt(height);
+            mapped.asIntBuffer().put(pixels, 0, width * height);
+            mapped.force();
+        }
+        Files.move(temp, checkpointFile(state), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        checkpoints.put(state, fingerprint);
+        while (checkpoints.size() > MAX_CHECKPOINTS) {
+            Map.Entry<Integer, Long> oldest = checkpoints.pollFirstEntry();
+            Files.deleteIfExists(checkpointFile(oldest.getKey()));
+        }
+    }
+
+    // Copies into image the latest checkpoint above `above` and at or below state whose
+    // fingerprint is still that of its state, and returns its state; -1 if there is none.
+    int readCheckpoint(int state, int above, IntToLongFunction fingerprint, BufferedImage image) {
+        for (Map.Entry<Integer, Long> entry = checkpoints.floorEntry(state);
+             entry != null && entry.getKey() > above; entry = checkpoints.lowerEntry(entry.getKey())) {
+            if (entry.getValue() != fingerprint.applyAsLong(entry.getKey())) {
+                continue;
+            }
+            try (FileChannel in = FileChannel.open(checkpointFile(entry.getKey()), StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                if (mapped.getInt() != CHECKPOINT_MAGIC || mapped.getInt() != entry.getKey()
+                        || mapped.getLong() != entry.getValue() || mapped.getInt() != image.getWidth()
+                        || mapped.getInt() != image.getHeight()) {
+                    continue;
+                }
+                IntBuffer pixels = mapped.asIntBuffer();
+                PixelBuffer p = PixelBuffer.of(image);
+                for (int y = 0; y < p.height; y++) {
+                    pixels.get(p.data, p.index(0, y), p.width);
+                }
+                p.commit();
+                return entry.getKey();
+            } catch (IOException | RuntimeException e) {
+                // Deleted or cut short since it was listed; try an older one.
+            }
+        }
+        return -1;
+    }
+
+    private Path checkpointFile(int state) {
+        return dir.resolve("checkpoint-" + state + ".raw");
+    }
+
+    // Deletes the checkpoint files of states from `from` on. Runs on the writer thread.
+    private void deleteCheckpoints(int from) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "checkpoint-*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String state = name.substring("checkpoint-".length(), name.indexOf('.'));
+                if (Integer.parseInt(state) >= from) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private void append(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + payload.length + Integer.BYTES);
+        record.putInt(payload.length).put(payload).putInt((int) crc.getValue()).flip();
+        write(record);
+    }
+
+    // Writes bytes after the last complete record and forces them to disk. The log is opened
+    // per write so idle journals hold no file handles; the first write after a start, a
+    // restore or a clear also cuts off whatever followed.
+    private void write(ByteBuffer bytes) throws IOException {
+        Files.createDirectories(dir);
+        try (FileChannel out = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (!trimmed) {
+                out.truncate(validBytes);
+                trimmed = true;
+            }
+            while (bytes.hasRemaining()) {
+                validBytes += out.write(bytes, validBytes);
+            }
+            out.force(false);
+        }
+    }
+
+    private void discard() throws IOException {
+        if (Files.isDirectory(dir)) {
+            deleteCheckpoints(Integer.MIN_VALUE);
+            Files.deleteIfExists(log);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private interface WriterTask {
+        void run() throws IOException;
+    }
+
+    // A journal that failed to write stops journaling rather than leave a log with gaps.
+    private void submit(WriterTask task) {
+        WRITER.execute(() -> {
+            if (failed) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                failed = true;
+            }
+        });
+    }
+}
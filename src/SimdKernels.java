@@ -0,0 +1,20 @@
+// Optional SIMD versions of the per-pixel filters. The implementation (VectorKernels, in the
+// vector module) needs jdk.incubator.vector and is looked up reflectively, so the app still
+// builds and runs without it. Results must match the scalar kernels in Filters bit for bit.
+public interface SimdKernels {
+    boolean supports(PixelFilter filter, FilterSettings settings);
+
+    void apply(PixelFilter filter, FilterSettings settings, PixelBuffer p, int y0, int y1);
+
+    static SimdKernels load() {
+        if (Boolean.getBoolean("filters.scalar")
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            return (SimdKernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+// A filter that maps every pixel through lookup tables chosen from the histogram of its whole
+// input. Filters, TiledImage and StripProcessor count the input first, band by band, tile by
+// tile or strip by strip, and then run the mapping as a per-pixel pass.
+public interface StatisticalFilter extends PixelFilter {
+    @Override
+    default Kind getKind() {
+        return Kind.STATISTICAL;
+    }
+
+    // Adds the per-pixel mapping chosen from histogram, the counts of the whole input, to a
+    // fused per-pixel pass.
+    void fuse(PointOp op, FilterSettings settings, Histogram histogram);
+}
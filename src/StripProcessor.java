@@ -0,0 +1,300 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+// Headless filtering of a single image too large to hold in memory. The source is read in
+// horizontal strips, each strip is read with enough extra rows above and below for the
+// chain's neighborhood filters, and the filtered rows are handed straight to the encoder, so
+// only a few strips are ever in memory. Filters only ever see whole rows, so Mirror works
+// unchanged. Statistical filters need counts over the whole image before their first row: each
+// one costs an extra read of the source, filtered up to that filter, before anything is written.
+//
+// The output is pulled by the encoder: it is a RenderedImage whose rows are produced strip by
+// strip in the order PNG, TIFF and PPM writers ask for them.
+public class StripProcessor {
+    private static final long STRIP_PIXELS = Long.getLong("strip.pixels", 8L << 20);
+
+    // Reads rows [y0, y1) of the full width as an INT_RGB image.
+    interface StripReader extends Closeable {
+        int getWidth();
+
+        int getHeight();
+
+        BufferedImage read(int y0, int y1) throws IOException;
+    }
+
+    private final FilterChain chain;
+    private final int stripRows;
+
+    public StripProcessor(FilterChain chain, int stripRows) {
+        this.chain = chain;
+        this.stripRows = stripRows;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: --stream <input image> <filter chain> <output .png, .tif or .ppm>");
+            System.err.println("  e.g. --stream scan.tif \"Grayscale,Show Borders\" out.tif");
+            System.exit(2);
+        }
+        FilterChain chain = BatchProcessor.parseChainArgument(args[1]);
+        Path output = Path.of(args[2]);
+        try (StripReader input = open(new File(args[0]))) {
+            int stripRows = (int) Math.max(1, Math.min(input.getHeight(), STRIP_PIXELS / input.getWidth()));
+            long start = System.nanoTime();
+            new StripProcessor(chain, stripRows).run(input, output);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf(Locale.ROOT, "%d x %d in %.2f s: %.2f MP/s, %d rows per strip%n",
+                    input.getWidth(), input.getHeight(), seconds,
+                    (double) input.getWidth() * input.getHeight() / 1e6 / seconds, stripRows);
+        }
+    }
+
+    // PPM is read by seeking to rows directly; everything else goes through ImageIO with a
+    // source region per strip. TIFF strips and tiles are decoded independently, while JPEG
+    // and PNG readers decode everything above each region again, so they are slower.
+    static StripReader open(File file) throws IOException {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".ppm") || name.endsWith(".pnm")) {
+            return new PpmReader(file);
+        }
+        return new RegionReader(file);
+    }
+
+    public void run(StripReader input, Path output) throws IOException {
+        String format = extension(output);
+        if (!format.equals("png") && !format.equals("tif") && !format.equals("tiff")
+                && !format.equals("ppm") && !format.equals("pnm")) {
+            // The JPEG writer copies its whole source and BMP is written bottom-up.
+            throw new IllegalArgumentException("Streamed output must be PNG, TIFF or PPM: " + output);
+        }
+        ImageSaver.write(new StreamedImage(input), output, format, -1, null);
+    }
+
+    private static String extension(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    // The filtered image, produced one strip at a time as the writer asks for rows. Rows must
+    // be requested top to bottom; only the current strip is kept.
+    private class StreamedImage extends RgbRenderedImage {
+        private final StripReader input;
+        private final List<FilterChain> passes;
+        // The tables of each statistical pass, counted over the whole image up front.
+        private final PointOp[] mapped;
+        private BufferedImage strip;
+        private int stripStart;
+        private int stripEnd;
+
+        StreamedImage(StripReader input) throws IOException {
+            super(input.getWidth(), input.getHeight(), input.getWidth(), stripRows);
+            this.input = input;
+            this.passes = chain.passes();
+            this.mapped = new PointOp[passes.size()];
+            for (int k = 0; k < passes.size(); k++) {
+                PixelFilter filter = FilterRegistry.get(passes.get(k).getFilters().get(0));
+                if (filter instanceof StatisticalFilter) {
+                    Histogram histogram = new Histogram();
+                    for (int y = 0; y < getHeight(); y += stripRows) {
+                        BufferedImage rows = filter(y, Math.min(getHeight(), y + stripRows), k);
+                        histogram.add(Histogram.of(PixelBuffer.of(rows), FilterProgress.NONE));
+                    }
+                    mapped[k] = new PointOp();
+                    ((StatisticalFilter) filter).fuse(mapped[k], passes.get(k).settings(0), histogram);
+                }
+            }
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            Rectangle r = rect.intersection(new Rectangle(0, 0, getWidth(), getHeight()));
+            BufferedImage out = new BufferedImage(r.width, r.height, BufferedImage.TYPE_INT_RGB);
+            PixelBuffer dst = PixelBuffer.of(out);
+            for (int y = r.y; y < r.y + r.height; y++) {
+                while (y >= stripEnd) {
+                    nextStrip();
+                }
+                if (y < stripStart) {
+                    throw new IllegalStateException("Row " + y + " was requested after row " + stripStart);
+                }
+                PixelBuffer src = PixelBuffer.of(strip);
+                System.arraycopy(src.data, src.index(r.x, y - stripStart), dst.data, dst.index(0, y - r.y), r.width);
+            }
+            return out.getRaster().createTranslatedChild(r.x, r.y);
+        }
+
+        private void nextStrip() {
+            int y0 = stripEnd;
+            int y1 = Math.min(getHeight(), y0 + stripRows);
+            try {
+                strip = filter(y0, y1, passes.size());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            stripStart = y0;
+            stripEnd = y1;
+        }
+
+        // Rows [y0, y1) after the first count passes. Works out, from the last of those passes
+        // back, which rows each pass needs for the rows after it to come out right, reads the
+        // widest range, and runs every pass on just its rows.
+        private BufferedImage filter(int y0, int y1, int count) throws IOException {
+            int width = getWidth();
+            int height = getHeight();
+            Rectangle[] sources = new Rectangle[count];
+            Rectangle need = new Rectangle(0, y0, width, y1 - y0);
+            for (int k = count - 1; k >= 0; k--) {
+                FilterChain pass = passes.get(k);
+                if (!pass.isPointwise() && mapped[k] == null) {
+                    PixelFilter filter = FilterRegistry.get(pass.getFilters().get(0));
+                    need = filter.getSourceRect(need, width, height, pass.settings(0));
+                }
+                sources[k] = need;
+            }
+            BufferedImage rows = input.read(need.y, need.y + need.height);
+            for (int k = 0; k < count; k++) {
+                Rectangle s = sources[k];
+                PixelBuffer p = PixelBuffer.of(rows.getSubimage(0, s.y - need.y, width, s.height));
+                if (mapped[k] != null) {
+                    Filters.forEachBand(p, 1, FilterProgress.NONE, mapped[k]::apply);
+                } else {
+                    passes.get(k).apply(p, FilterProgress.NONE);
+                }
+            }
+            return rows.getSubimage(0, y0 - need.y, width, y1 - y0);
+        }
+    }
+
+    private static class RegionReader implements StripReader {
+        private final ImageInputStream input;
+        private final ImageReader reader;
+
+        RegionReader(File file) throws IOException {
+            input = ImageIO.createImageInputStream(file);
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("No reader for " + file);
+            }
+            reader = readers.next();
+            reader.setInput(input, false, true);
+        }
+
+        @Override
+        public int getWidth() {
+            try {
+                return reader.getWidth(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public int getHeight() {
+            try {
+                return reader.getHeight(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public BufferedImage read(int y0, int y1) throws IOException {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, y0, getWidth(), y1 - y0));
+            return BatchProcessor.toIntRgb(reader.read(0, param));
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            input.close();
+        }
+    }
+
+    // Binary PPM (P6) with 8-bit samples: rows have a fixed size, so any strip is one seek away.
+    private static class PpmReader implements StripReader {
+        private final RandomAccessFile file;
+        private final int width;
+        private final int height;
+        private final long dataStart;
+
+        PpmReader(File source) throws IOException {
+            file = new RandomAccessFile(source, "r");
+            if (!"P6".equals(token(file))) {
+                throw new IOException("Not a binary PPM: " + source);
+            }
+            width = Integer.parseInt(token(file));
+            height = Integer.parseInt(token(file));
+            if (Integer.parseInt(token(file)) != 255) {
+                throw new IOException("Only 8-bit PPM is supported: " + source);
+            }
+            // A single whitespace byte separates the header from the samples.
+            dataStart = file.getFilePointer();
+        }
+
+        private static String token(RandomAccessFile in) throws IOException {
+            StringBuilder token = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '#' && token.length() == 0) {
+                    while ((c = in.read()) != -1 && c != '\n') {
+                        // skip comment
+                    }
+                } else if (Character.isWhitespace(c)) {
+                    if (token.length() > 0) {
+                        return token.toString();
+                    }
+                } else {
+                    token.append((char) c);
+                }
+            }
+            throw new EOFException("Truncated PPM header");
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public BufferedImage read(int y0, int y1) throws IOException {
+            BufferedImage rows = new BufferedImage(width, y1 - y0, BufferedImage.TYPE_INT_RGB);
+            int[] pixels = PixelBuffer.of(rows).data;
+            byte[] bytes = new byte[width * 3];
+            file.seek(dataStart + (long) y0 * bytes.length);
+            for (int y = 0, p = 0; y < y1 - y0; y++) {
+                file.readFully(bytes);
+                for (int i = 0; i < bytes.length; i += 3) {
+                    pixels[p++] = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+                }
+            }
+            return rows;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
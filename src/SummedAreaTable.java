@@ -0,0 +1,85 @@
+import java.util.Arrays;
+
+// Running sums of the red, green, blue and alpha values over a rectangle of an image, from which
+// the sum of any box inside it takes four lookups. The sums are ints and are allowed to wrap:
+// the difference of wrapped sums is still exact as long as the box itself sums to less than
+// 2^31, which holds for any box of up to 8 million pixels.
+//
+// A table is sized once and then summed over one rectangle after another, e.g. the tiles of a
+// band, so the tiles do not each allocate one.
+public class SummedAreaTable {
+    // (width + 1) x (height + 1) entries of four channels each; row and column 0 are zero.
+    private final int[] sums;
+    private final int[] columns;
+    private int width;
+    // Means are taken by multiplying with 1 / count, kept for the last count since callers
+    // mostly ask for boxes of one size.
+    private int count;
+    private double reciprocal;
+
+    // Room for rectangles of up to maxWidth x maxHeight pixels.
+    SummedAreaTable(int maxWidth, int maxHeight) {
+        sums = new int[4 * (maxWidth + 1) * (maxHeight + 1)];
+        columns = new int[maxWidth];
+    }
+
+    // Sums the width x height pixels from (x0, y0) on, which may lie partly outside p; edge
+    // makes those up as in Convolution.
+    void sum(PixelBuffer p, int x0, int y0, int width, int height, Convolution.Edge edge) {
+        this.width = width;
+        for (int x = 0; x < width; x++) {
+            columns[x] = edge.map(x0 + x, p.width);
+        }
+        int stride = 4 * (width + 1);
+        Arrays.fill(sums, 0, stride, 0);
+        for (int y = 0; y < height; y++) {
+            int sy = edge.map(y0 + y, p.height);
+            int row = sy < 0 ? -1 : p.index(0, sy);
+            int above = y * stride + 4;
+            int o = above + stride;
+            Arrays.fill(sums, o - 4, o, 0);
+            int r = 0;
+            int g = 0;
+            int b = 0;
+            int a = 0;
+            for (int x = 0; x < width; x++, o += 4, above += 4) {
+                int rgb = row < 0 || columns[x] < 0 ? 0 : p.data[row + columns[x]];
+                r += (rgb >> 16) & 0xFF;
+                g += (rgb >> 8) & 0xFF;
+                b += rgb & 0xFF;
+                a += rgb >>> 24;
+                sums[o] = sums[above] + r;
+                sums[o + 1] = sums[above + 1] + g;
+                sums[o + 2] = sums[above + 2] + b;
+                sums[o + 3] = sums[above + 3] + a;
+            }
+        }
+    }
+
+    // The mean of the box [x0, x1) x [y0, y1), in table coordinates, as a packed ARGB pixel with
+    // each channel rounded to the nearest value. The 1e-9 makes up for the rounding error of the
+    // product, which is far smaller, while a quotient that is not whole is at least 1 / count
+    // away from the next integer, so the result is exactly (sum + count / 2) / count.
+    public int average(int x0, int y0, int x1, int y1) {
+        int count = (x1 - x0) * (y1 - y0);
+        if (count != this.count) {
+            this.count = count;
+            reciprocal = 1.0 / count;
+        }
+        int stride = 4 * (width + 1);
+        int topLeft = y0 * stride + 4 * x0;
+        int topRight = y0 * stride + 4 * x1;
+        int bottomLeft = y1 * stride + 4 * x0;
+        int bottomRight = y1 * stride + 4 * x1;
+        int rgb = mean(bottomRight, bottomLeft, topRight, topLeft, count) << 16;
+        rgb |= mean(bottomRight + 1, bottomLeft + 1, topRight + 1, topLeft + 1, count) << 8;
+        rgb |= mean(bottomRight + 2, bottomLeft + 2, topRight + 2, topLeft + 2, count);
+        rgb |= mean(bottomRight + 3, bottomLeft + 3, topRight + 3, topLeft + 3, count) << 24;
+        return rgb;
+    }
+
+    private int mean(int bottomRight, int bottomLeft, int topRight, int topLeft, int count) {
+        int sum = sums[bottomRight] - sums[bottomLeft] - sums[topRight] + sums[topLeft];
+        return (int) ((sum + count / 2) * reciprocal + 1e-9);
+    }
+}
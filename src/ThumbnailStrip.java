@@ -0,0 +1,96 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+// One row of thumbnails for the images of a workspace. Selecting one (by mouse or with the
+// arrow keys) shows it in the image panel. Thumbnails are filled in as the workspace produces
+// them; only the cells on screen ask for theirs.
+public class ThumbnailStrip extends JPanel {
+    private final ImagePanel imagePanel;
+    private final DefaultListModel<File> files = new DefaultListModel<>();
+    private final JList<File> list = new JList<>(files);
+    private Workspace workspace;
+    private boolean selecting;
+
+    public ThumbnailStrip(ImagePanel imagePanel) {
+        this.imagePanel = imagePanel;
+        setLayout(new BorderLayout());
+
+        list.setLayoutOrientation(JList.HORIZONTAL_WRAP);
+        list.setVisibleRowCount(1);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setFixedCellWidth(Workspace.THUMBNAIL_SIZE + 12);
+        list.setFixedCellHeight(Workspace.THUMBNAIL_SIZE + 28);
+        list.setCellRenderer(new ThumbnailRenderer());
+        list.addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting() && !selecting && list.getSelectedValue() != null) {
+                imagePanel.showWorkspaceImage(list.getSelectedValue());
+            }
+        });
+
+        JScrollPane scrollPane = new JScrollPane(list, ScrollPaneConstants.VERTICAL_SCROLLBAR_NEVER,
+                ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+        add(scrollPane, BorderLayout.CENTER);
+        setVisible(false);
+    }
+
+    // Shows the files of workspace, or hides the strip for null.
+    public void setWorkspace(Workspace workspace) {
+        this.workspace = workspace;
+        selecting = true;
+        files.clear();
+        if (workspace != null) {
+            files.addAll(workspace.getFiles());
+        }
+        selecting = false;
+        setVisible(workspace != null);
+        revalidate();
+    }
+
+    // Marks file as the one shown without opening it again; null clears the selection.
+    public void setSelected(File file) {
+        selecting = true;
+        if (file == null) {
+            list.clearSelection();
+        } else {
+            list.setSelectedValue(file, true);
+        }
+        selecting = false;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        super.setEnabled(enabled);
+        list.setEnabled(enabled);
+    }
+
+    private class ThumbnailRenderer extends DefaultListCellRenderer {
+        ThumbnailRenderer() {
+            setHorizontalAlignment(CENTER);
+            setHorizontalTextPosition(CENTER);
+            setVerticalTextPosition(BOTTOM);
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected,
+                                                      boolean cellHasFocus) {
+            File file = (File) value;
+            super.getListCellRendererComponent(list, file.getName(), index, isSelected, cellHasFocus);
+            BufferedImage thumbnail = workspace == null ? null : workspace.thumbnail(file, () -> repaintCell(file));
+            setIcon(thumbnail == null ? null : new ImageIcon(thumbnail));
+            setToolTipText(file.getName());
+            return this;
+        }
+    }
+
+    private void repaintCell(File file) {
+        int index = files.indexOf(file);
+        if (index >= 0) {
+            Rectangle cell = list.getCellBounds(index, index);
+            if (cell != null) {
+                list.repaint(cell);
+            }
+        }
+    }
+}
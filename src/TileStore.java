@@ -0,0 +1,49 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Fixed-size pixel slots in a memory-mapped temporary file. The pages live outside the Java
+// heap and are written back by the OS under memory pressure, so a store can be far larger
+// than the heap. Slots are mapped on first use; a slot that was never written reads as zeros.
+public class TileStore implements Closeable {
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] slots;
+    private final int slotInts;
+
+    public TileStore(int slotCount, int slotInts) throws IOException {
+        this.file = Files.createTempFile("filters-tiles", ".raw");
+        this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        this.slots = new MappedByteBuffer[slotCount];
+        this.slotInts = slotInts;
+    }
+
+    private IntBuffer slot(int index) throws IOException {
+        if (slots[index] == null) {
+            long bytes = (long) slotInts * Integer.BYTES;
+            slots[index] = channel.map(FileChannel.MapMode.READ_WRITE, index * bytes, bytes);
+        }
+        return slots[index].asIntBuffer();
+    }
+
+    public void write(int index, int[] pixels, int length) throws IOException {
+        slot(index).put(pixels, 0, length);
+    }
+
+    public void read(int index, int[] pixels, int length) throws IOException {
+        slot(index).get(pixels, 0, length);
+    }
+
+    // The mappings themselves are released when they are garbage collected.
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+}
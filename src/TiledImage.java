@@ -0,0 +1,341 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// An image file too large to decode in one piece. Tiles are decoded on demand with a source
+// region, kept in a small LRU cache of INT_RGB tiles, and written back to a memory-mapped
+// TileStore when evicted, so memory use depends on the tile and cache size rather than on
+// the image. Filter chains run tile by tile, and writers that pull rows (PNG, BMP, TIFF) can
+// save it without a full-size copy.
+public class TiledImage extends RgbRenderedImage implements Closeable {
+    private static final int TILE_SIZE = Integer.getInteger("tiles.size", 512);
+    // Upper bound on the pixels decoded in one read; JPEG and PNG have to decode everything
+    // above a region anyway, so a whole row of tiles is read at once when it fits.
+    private static final long DECODE_PIXELS = 32L << 20;
+
+    private static class Tile {
+        final BufferedImage image;
+        boolean dirty;
+
+        Tile(BufferedImage image) {
+            this.image = image;
+        }
+    }
+
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    private final TileStore store;
+    private final BitSet stored = new BitSet();
+    private final Map<Integer, Tile> cache;
+    private TileStore pending;
+
+    private TiledImage(ImageInputStream input, ImageReader reader, int width, int height) throws IOException {
+        super(width, height, TILE_SIZE, TILE_SIZE);
+        this.input = input;
+        this.reader = reader;
+        this.width = width;
+        this.height = height;
+        this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.store = new TileStore(tilesX * tilesY, TILE_SIZE * TILE_SIZE);
+        long tileBytes = (long) TILE_SIZE * TILE_SIZE * Integer.BYTES;
+        int capacity = (int) Math.max(4, Long.getLong("tiles.cache.mb", 256) * 1024 * 1024 / tileBytes);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Tile> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                writeBack(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    // Reads just the header; returns null if no installed reader understands the file.
+    public static TiledImage open(File file) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        if (input == null) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            return null;
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, false, true);
+        return new TiledImage(input, reader, reader.getWidth(0), reader.getHeight(0));
+    }
+
+    public long getPixelCount() {
+        return (long) width * height;
+    }
+
+    // A screen-sized version of the whole image, decoded with source subsampling so only
+    // every n-th pixel of every n-th row is kept.
+    public synchronized BufferedImage readOverview(int maxWidth, int maxHeight) throws IOException {
+        int step = Math.max(1, Math.min(width / Math.max(1, maxWidth), height / Math.max(1, maxHeight)));
+        return decode(step);
+    }
+
+    // The thumbnail embedded in the file (JFIF and TIFF can carry one), or null. Much cheaper
+    // than any decode of the image itself, since JPEG subsampling still entropy-decodes it all.
+    public synchronized BufferedImage readThumbnail() throws IOException {
+        if (!reader.readerSupportsThumbnails() || reader.getNumThumbnails(0) == 0) {
+            return null;
+        }
+        return BatchProcessor.toIntRgb(reader.readThumbnail(0, 0));
+    }
+
+    // Decodes the whole image, for files small enough to edit in memory.
+    public synchronized BufferedImage readAll() throws IOException {
+        return decode(1);
+    }
+
+    // Keeps every step-th pixel of every step-th row, as INT_RGB. Only a reader whose own
+    // image type is INT_RGB decodes straight into an INT_RGB destination, which saves the
+    // conversion copy; others (24-bit, 565 and indexed BMPs, GIFs, palette PNGs) reject or
+    // mangle one, so they decode to their own type and are converted. Should a reader still
+    // turn the destination down, the plain read is tried instead.
+    private BufferedImage decode(int step) throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (types.hasNext() && types.next().getBufferedImageType() == BufferedImage.TYPE_INT_RGB) {
+            ImageReadParam param = subsampled(step);
+            param.setDestination(new BufferedImage((width + step - 1) / step, (height + step - 1) / step,
+                    BufferedImage.TYPE_INT_RGB));
+            try {
+                return BatchProcessor.toIntRgb(reader.read(0, param));
+            } catch (IOException | IllegalArgumentException e) {
+                // Fall back to the reader's own image type below.
+            }
+        }
+        return BatchProcessor.toIntRgb(reader.read(0, subsampled(step)));
+    }
+
+    private ImageReadParam subsampled(int step) {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(step, step, 0, 0);
+        return param;
+    }
+
+    public void addProgressListener(IIOReadProgressListener listener) {
+        reader.addIIOReadProgressListener(listener);
+    }
+
+    // Makes a read in progress on another thread return early. Not synchronized, since that
+    // thread holds the lock for the whole read.
+    public void abort() {
+        reader.abort();
+    }
+
+    // Throws away all edits; tiles are decoded from the file again when next needed.
+    public synchronized void revert() {
+        cache.clear();
+        stored.clear();
+    }
+
+    // A copy of r as an INT_RGB image.
+    public synchronized BufferedImage read(Rectangle r) {
+        BufferedImage out = new BufferedImage(r.width, r.height, BufferedImage.TYPE_INT_RGB);
+        PixelBuffer dst = PixelBuffer.of(out);
+        forEachTile(r, (tile, part) -> {
+            PixelBuffer src = PixelBuffer.of(tile.image);
+            int tileX = part.x % TILE_SIZE;
+            int tileY = part.y % TILE_SIZE;
+            for (int y = 0; y < part.height; y++) {
+                System.arraycopy(src.data, src.index(tileX, tileY + y),
+                        dst.data, dst.index(part.x - r.x, part.y - r.y + y), part.width);
+            }
+        });
+        return out;
+    }
+
+    // Runs chain over region one tile at a time. Per-pixel passes filter each tile in place;
+    // statistical filters count every tile first and then map each one in place; other
+    // filters read the part of the image getSourceRect asks for around each tile and write
+    // into a scratch store, which replaces the tiles once the whole pass is done.
+    public synchronized void apply(FilterChain chain, Rectangle region, FilterProgress progress) throws IOException {
+        for (FilterChain pass : chain.passes()) {
+            PixelFilter first = FilterRegistry.get(pass.getFilters().get(0));
+            if (pass.isPointwise()) {
+                forEachTile(region, (tile, part) -> {
+                    pass.apply(part(tile, part), progress);
+                    tile.dirty = true;
+                });
+            } else if (first instanceof StatisticalFilter) {
+                Histogram histogram = new Histogram();
+                forEachTile(region, (tile, part) -> histogram.add(Histogram.of(part(tile, part), progress)));
+                PointOp op = new PointOp();
+                ((StatisticalFilter) first).fuse(op, pass.settings(0), histogram);
+                forEachTile(region, (tile, part) -> {
+                    PixelBuffer p = part(tile, part);
+                    Filters.forEachBand(p, 1, progress, op::apply);
+                    tile.dirty = true;
+                });
+            } else {
+                applyNeighborhood(pass, region, progress);
+            }
+        }
+    }
+
+    // The pixels of tile that lie in part, which is in image coordinates.
+    private static PixelBuffer part(Tile tile, Rectangle part) {
+        return PixelBuffer.of(tile.image.getSubimage(part.x % TILE_SIZE, part.y % TILE_SIZE, part.width, part.height));
+    }
+
+    private void applyNeighborhood(FilterChain pass, Rectangle region, FilterProgress progress) throws IOException {
+        PixelFilter filter = FilterRegistry.get(pass.getFilters().get(0));
+        FilterSettings settings = pass.settings(0);
+        if (pending == null) {
+            pending = new TileStore(tilesX * tilesY, TILE_SIZE * TILE_SIZE);
+        }
+        List<Rectangle> parts = new ArrayList<>();
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        forEachPart(region, part -> {
+            Rectangle target = new Rectangle(part.x - region.x, part.y - region.y, part.width, part.height);
+            Rectangle source = filter.getSourceRect(target, region.width, region.height, settings);
+            BufferedImage work = read(new Rectangle(region.x + source.x, region.y + source.y,
+                    source.width, source.height));
+            PixelBuffer p = PixelBuffer.of(work);
+            Filters.apply(p, filter, settings, progress);
+            int dx = filter.getKind() == PixelFilter.Kind.GEOMETRIC ? 0 : target.x - source.x;
+            int dy = filter.getKind() == PixelFilter.Kind.GEOMETRIC ? 0 : target.y - source.y;
+            for (int y = 0; y < part.height; y++) {
+                System.arraycopy(p.data, p.index(dx, dy + y), pixels, y * part.width, part.width);
+            }
+            pending.write(index(part), pixels, part.width * part.height);
+            parts.add(part);
+        });
+        for (Rectangle part : parts) {
+            pending.read(index(part), pixels, part.width * part.height);
+            Tile tile = tile(part.x / TILE_SIZE, part.y / TILE_SIZE);
+            PixelBuffer dst = PixelBuffer.of(tile.image);
+            for (int y = 0; y < part.height; y++) {
+                System.arraycopy(pixels, y * part.width,
+                        dst.data, dst.index(part.x % TILE_SIZE, part.y % TILE_SIZE + y), part.width);
+            }
+            tile.dirty = true;
+        }
+    }
+
+    private interface PartVisitor {
+        void visit(Rectangle part) throws IOException;
+    }
+
+    private interface TileVisitor {
+        void visit(Tile tile, Rectangle part) throws IOException;
+    }
+
+    // Visits the intersection of r with every tile it touches, in image coordinates.
+    private void forEachPart(Rectangle r, PartVisitor visitor) throws IOException {
+        for (int ty = r.y / TILE_SIZE; ty * TILE_SIZE < r.y + r.height; ty++) {
+            for (int tx = r.x / TILE_SIZE; tx * TILE_SIZE < r.x + r.width; tx++) {
+                visitor.visit(tileBounds(tx, ty).intersection(r));
+            }
+        }
+    }
+
+    private void forEachTile(Rectangle r, TileVisitor visitor) {
+        try {
+            forEachPart(r, part -> visitor.visit(tile(part.x / TILE_SIZE, part.y / TILE_SIZE), part));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int index(Rectangle part) {
+        return part.y / TILE_SIZE * tilesX + part.x / TILE_SIZE;
+    }
+
+    private Rectangle tileBounds(int tx, int ty) {
+        return new Rectangle(tx * TILE_SIZE, ty * TILE_SIZE,
+                Math.min(TILE_SIZE, width - tx * TILE_SIZE), Math.min(TILE_SIZE, height - ty * TILE_SIZE));
+    }
+
+    private Tile tile(int tx, int ty) throws IOException {
+        int index = ty * tilesX + tx;
+        Tile tile = cache.get(index);
+        if (tile != null) {
+            return tile;
+        }
+        if (!stored.get(index)) {
+            decode(tx, ty);
+        }
+        Rectangle bounds = tileBounds(tx, ty);
+        tile = new Tile(new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_RGB));
+        PixelBuffer p = PixelBuffer.of(tile.image);
+        store.read(index, p.data, bounds.width * bounds.height);
+        cache.put(index, tile);
+        return tile;
+    }
+
+    // Decodes the run of tiles in row ty that contains tx and puts them in the store.
+    private void decode(int tx, int ty) throws IOException {
+        int run = (int) Math.max(1, Math.min(tilesX, DECODE_PIXELS / ((long) TILE_SIZE * TILE_SIZE)));
+        int first = tx / run * run;
+        int last = Math.min(tilesX, first + run);
+        Rectangle band = tileBounds(first, ty).union(tileBounds(last - 1, ty));
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(band);
+        BufferedImage decoded = reader.read(0, param);
+        for (int x = first; x < last; x++) {
+            Rectangle bounds = tileBounds(x, ty);
+            BufferedImage tile = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_RGB);
+            Graphics g = tile.getGraphics();
+            g.drawImage(decoded, band.x - bounds.x, 0, null);
+            g.dispose();
+            int index = ty * tilesX + x;
+            store.write(index, PixelBuffer.of(tile).data, bounds.width * bounds.height);
+            stored.set(index);
+        }
+    }
+
+    private void writeBack(int index, Tile tile) {
+        if (!tile.dirty) {
+            return;
+        }
+        try {
+            store.write(index, PixelBuffer.of(tile.image).data, tile.image.getWidth() * tile.image.getHeight());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        cache.clear();
+        reader.dispose();
+        input.close();
+        store.close();
+        if (pending != null) {
+            pending.close();
+        }
+    }
+
+    @Override
+    public Raster getData(Rectangle rect) {
+        Rectangle r = rect.intersection(new Rectangle(0, 0, width, height));
+        return read(r).getRaster().createTranslatedChild(r.x, r.y);
+    }
+}
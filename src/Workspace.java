@@ -0,0 +1,314 @@
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+// The images of one folder, for flipping through them. Images that have been decoded are kept
+// with their edit histories in an LRU cache of -Dworkspace.budget.mb, and the -Dworkspace.prefetch
+// images on either side of the one on screen are decoded ahead of time, so moving to a
+// neighbour needs no decode. An evicted image that has edits keeps its edit log; coming back
+// to it decodes the file again and replays the edits.
+//
+// Thumbnails are decoded with source subsampling (or taken from the file's embedded thumbnail)
+// and cached as PNGs under -Dthumbnail.dir.
+public class Workspace {
+    public static final int THUMBNAIL_SIZE = 96;
+    private static final long BUDGET_BYTES = Long.getLong("workspace.budget.mb", 1024) * 1024 * 1024;
+    private static final int PREFETCH = Integer.getInteger("workspace.prefetch", 1);
+    private static final Path THUMBNAIL_DIR = System.getProperty("thumbnail.dir") != null
+            ? Path.of(System.getProperty("thumbnail.dir"))
+            : Path.of(System.getProperty("user.home"), ".cache", "image-editor", "thumbnails");
+
+    // A decoded image and its history. history is null until the image has been shown; image
+    // and original are null while the entry is suspended.
+    public static class Entry {
+        final File file;
+        BufferedImage image;
+        BufferedImage original;
+        EditHistory history;
+
+        Entry(File file, BufferedImage image, BufferedImage original, EditHistory history) {
+            this.file = file;
+            this.image = image;
+            this.original = original;
+            this.history = history;
+        }
+
+        boolean isSuspended() {
+            return image == null;
+        }
+
+        boolean isEdited() {
+            return history != null && (history.canUndo() || history.canRedo());
+        }
+
+        long bytes() {
+            long total = history != null ? history.getMemoryBytes() : 0;
+            if (image != null) {
+                total += (long) image.getWidth() * image.getHeight() * Integer.BYTES;
+            }
+            if (original != null && original != image) {
+                total += (long) original.getWidth() * original.getHeight() * Integer.BYTES;
+            }
+            return total;
+        }
+    }
+
+    private final File directory;
+    private final List<File> files;
+    private final LinkedHashMap<File, Entry> decoded = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<File, Entry> suspended = new HashMap<>();
+    private final Map<File, Prefetch> prefetching = new HashMap<>();
+    private final Map<File, BufferedImage> thumbnails = new HashMap<>();
+    private final Set<File> thumbnailsRequested = new HashSet<>();
+    private final ExecutorService decoder = Executors.newFixedThreadPool(Math.max(1, 2 * PREFETCH),
+            Thread.ofPlatform().daemon().priority(Thread.MIN_PRIORITY).name("workspace-prefetch-", 0).factory());
+    private final ExecutorService thumbnailer = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().daemon().priority(Thread.MIN_PRIORITY).name("workspace-thumbnails").factory());
+    private long decodedBytes;
+
+    public Workspace(File directory) {
+        this.directory = directory;
+        Set<String> suffixes = new HashSet<>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            suffixes.add(suffix.toLowerCase(Locale.ROOT));
+        }
+        File[] listed = directory.listFiles(file -> {
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            return file.isFile() && dot > 0 && suffixes.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        });
+        files = listed == null ? List.of() : new ArrayList<>(Arrays.asList(listed));
+        files.sort(null);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public List<File> getFiles() {
+        return files;
+    }
+
+    // Takes the entry for file out of the cache, or returns null if it is not held. A suspended
+    // entry comes back with just its history.
+    public synchronized Entry take(File file) {
+        Entry entry = decoded.remove(file);
+        if (entry != null) {
+            decodedBytes -= entry.bytes();
+            return entry;
+        }
+        return suspended.remove(file);
+    }
+
+    // Hands an image back when another one is shown; it becomes the most recently used.
+    public synchronized void park(Entry entry) {
+        decodedBytes += entry.bytes();
+        decoded.put(entry.file, entry);
+        evict();
+    }
+
+    // The decode of file started by prefetch, if one is in flight. Its result is then no
+    // longer cached; the caller waits for it instead of decoding the file a second time.
+    // Claim before take, so a prefetch finishing in between cannot cache the entry as well.
+    public synchronized Future<Entry> claim(File file) {
+        return prefetching.remove(file);
+    }
+
+    // Starts decoding the neighbours of file that are not held yet and cancels plain decodes
+    // that are no longer next to it. Replays of a suspended history run to completion, since
+    // the history cannot be handed to a second decode while one is still replaying into it.
+    public synchronized void prefetchAround(File file) {
+        int index = files.indexOf(file);
+        Set<File> wanted = new HashSet<>();
+        for (int d = 1; d <= PREFETCH && index >= 0; d++) {
+            for (int i : new int[]{index + d, index - d}) {
+                if (i >= 0 && i < files.size()) {
+                    wanted.add(files.get(i));
+                }
+            }
+        }
+        Iterator<Prefetch> running = prefetching.values().iterator();
+        while (running.hasNext()) {
+            Prefetch prefetch = running.next();
+            if (!wanted.contains(prefetch.file) && prefetch.history == null) {
+                running.remove();
+                prefetch.cancel(true);
+            }
+        }
+        for (File neighbour : wanted) {
+            if (!decoded.containsKey(neighbour) && !prefetching.containsKey(neighbour)) {
+                Entry held = suspended.get(neighbour);
+                Prefetch prefetch = new Prefetch(neighbour, held != null ? held.history : null);
+                prefetching.put(neighbour, prefetch);
+                decoder.execute(prefetch);
+            }
+        }
+    }
+
+    // Caches its result when done, unless it was cancelled or claimed in the meantime.
+    private class Prefetch extends FutureTask<Entry> {
+        final File file;
+        final EditHistory history;
+
+        Prefetch(File file, EditHistory history) {
+            super(() -> decode(file, history));
+            this.file = file;
+            this.history = history;
+        }
+
+        @Override
+        protected void done() {
+            synchronized (Workspace.this) {
+                if (prefetching.get(file) != this) {
+                    return;
+                }
+                prefetching.remove(file);
+                if (state() == State.SUCCESS && resultNow() != null) {
+                    suspended.remove(file);
+                    park(resultNow());
+                }
+            }
+        }
+    }
+
+    // Decodes file for editing, or returns null if it is too large to edit in memory. With a
+    // suspended history the edits are replayed onto the fresh decode; otherwise a session
+    // journaled for the file is restored.
+    static Entry decode(File file, EditHistory history) throws IOException {
+        try (TiledImage opened = TiledImage.open(file)) {
+            if (opened == null || opened.getPixelCount() > ImagePanel.TILED_PIXELS) {
+                return null;
+            }
+            BufferedImage original = opened.readAll();
+            if (history != null) {
+                return new Entry(file, history.resume(original), original, history);
+            }
+            EditHistory restored = new EditHistory(ImagePanel.HISTORY_BYTES);
+            BufferedImage current = SessionJournal.restore(file, original, restored);
+            if (current != null) {
+                return new Entry(file, current, original, restored);
+            }
+            return new Entry(file, original, ImagePanel.copyImage(original), null);
+        }
+    }
+
+    // Least recently shown first: edited images keep their history in a suspended state,
+    // the rest are dropped and decoded again if needed.
+    private void evict() {
+        Iterator<Entry> eldest = decoded.values().iterator();
+        while (decodedBytes > BUDGET_BYTES && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            decodedBytes -= entry.bytes();
+            eldest.remove();
+            if (entry.isEdited()) {
+                entry.history.suspend();
+                entry.image = null;
+                entry.original = null;
+                suspended.put(entry.file, entry);
+            }
+        }
+    }
+
+    public synchronized long getDecodedBytes() {
+        return decodedBytes;
+    }
+
+    // The thumbnail for file, or null while it is generated; ready then runs on the EDT once
+    // it is available.
+    public BufferedImage thumbnail(File file, Runnable ready) {
+        synchronized (thumbnails) {
+            BufferedImage thumbnail = thumbnails.get(file);
+            if (thumbnail != null || !thumbnailsRequested.add(file)) {
+                return thumbnail;
+            }
+        }
+        thumbnailer.execute(() -> {
+            BufferedImage thumbnail = loadThumbnail(file);
+            if (thumbnail != null) {
+                synchronized (thumbnails) {
+                    thumbnails.put(file, thumbnail);
+                }
+                SwingUtilities.invokeLater(ready);
+            }
+        });
+        return null;
+    }
+
+    // Cached thumbnails are named after the file's path, size and modification time, so a
+    // changed file gets a new one.
+    private static BufferedImage loadThumbnail(File file) {
+        String key = UUID.nameUUIDFromBytes(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8))
+                + "-" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(file.length());
+        Path cached = THUMBNAIL_DIR.resolve(key + ".png");
+        try {
+            if (Files.isRegularFile(cached)) {
+                BufferedImage thumbnail = ImageIO.read(cached.toFile());
+                if (thumbnail != null) {
+                    return thumbnail;
+                }
+            }
+            BufferedImage thumbnail;
+            try (TiledImage opened = TiledImage.open(file)) {
+                if (opened == null) {
+                    return null;
+                }
+                BufferedImage source = opened.readThumbnail();
+                if (source == null || Math.max(source.getWidth(), source.getHeight()) < THUMBNAIL_SIZE) {
+                    source = opened.readOverview(THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+                }
+                thumbnail = fit(source);
+            }
+            Files.createDirectories(THUMBNAIL_DIR);
+            ImageSaver.write(thumbnail, cached, "png", -1, null);
+            return thumbnail;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Subsampling only gets within a factor of two of the size; the rest is a bilinear scale.
+    private static BufferedImage fit(BufferedImage source) {
+        double scale = Math.min(1.0, (double) THUMBNAIL_SIZE / Math.max(source.getWidth(), source.getHeight()));
+        int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = thumbnail.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(source, 0, 0, width, height, null);
+        g.dispose();
+        return thumbnail;
+    }
+
+    public void close() {
+        decoder.shutdownNow();
+        thumbnailer.shutdownNow();
+        synchronized (this) {
+            prefetching.clear();
+            decoded.clear();
+            suspended.clear();
+            decodedBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.awt.*;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Vector API versions of the per-pixel filters. Each row is processed a full vector of packed
+// pixels at a time, and the remaining pixels go through the same arithmetic in a scalar tail.
+// Needs --add-modules jdk.incubator.vector at compile and run time.
+public class VectorKernels implements SimdKernels {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    // (sum * 43691) >>> 17 == sum / 3 for every sum of three channels (0..765), so the
+    // truncating division in the scalar kernels is reproduced without a vector divide.
+    private static final int DIV3_MULTIPLIER = 43691;
+    private static final int DIV3_SHIFT = 17;
+
+    @Override
+    public boolean supports(PixelFilter filter, FilterSettings settings) {
+        switch (filter.getName()) {
+            case "Posterize":
+                // Masking off the low bits only matches the division when the step is a power of two.
+                return Integer.bitCount(256 / settings.getInt("levels")) == 1;
+            case "Black-White":
+            case "Grayscale":
+            case "Tint":
+            case "Color Shift Right":
+            case "Eliminate Red":
+            case "Negative":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void apply(PixelFilter filter, FilterSettings settings, PixelBuffer p, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int from = p.index(0, y);
+            int to = from + p.width;
+            switch (filter.getName()) {
+                case "Black-White":
+                    blackWhite(p.data, from, to, Color.WHITE.getRGB() & p.storeMask, Color.BLACK.getRGB() & p.storeMask);
+                    break;
+                case "Grayscale":
+                    grayscale(p.data, from, to);
+                    break;
+                case "Posterize":
+                    int keep = ~(256 / settings.getInt("levels") - 1) & 0xFF;
+                    and(p.data, from, to, (keep << 16) | (keep << 8) | keep);
+                    break;
+                case "Tint":
+                    tint(p.data, from, to, settings.getInt("color"));
+                    break;
+                case "Color Shift Right":
+                    colorShiftRight(p.data, from, to);
+                    break;
+                case "Eliminate Red":
+                    and(p.data, from, to, 0x00FFFF);
+                    break;
+                case "Negative":
+                    negative(p.data, from, to);
+                    break;
+            }
+        }
+    }
+
+    private static IntVector gray(IntVector v) {
+        IntVector sum = v.lanewise(VectorOperators.LSHR, 16).and(0xFF)
+                .add(v.lanewise(VectorOperators.LSHR, 8).and(0xFF))
+                .add(v.and(0xFF));
+        return sum.mul(DIV3_MULTIPLIER).lanewise(VectorOperators.LSHR, DIV3_SHIFT);
+    }
+
+    private static int gray(int rgb) {
+        int sum = ((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) + (rgb & 0xFF);
+        return (sum * DIV3_MULTIPLIER) >>> DIV3_SHIFT;
+    }
+
+    private static void blackWhite(int[] data, int from, int to, int white, int black) {
+        int i = from;
+        int bound = from + SPECIES.loopBound(to - from);
+        IntVector whites = IntVector.broadcast(SPECIES, white);
+        IntVector blacks = IntVector.broadcast(SPECIES, black);
+        for (; i < bound; i += SPECIES.length()) {
+            VectorMask<Integer> bright = gray(IntVector.fromArray(SPECIES, data, i)).compare(VectorOperators.GT, 127);
+            blacks.blend(whites, bright).intoArray(data, i);
+        }
+        for (; i < to; i++) {
+            data[i] = gray(data[i]) > 127 ? white : black;
+        }
+    }
+
+    private static void grayscale(int[] data, int from, int to) {
+        int i = from;
+        int bound = from + SPECIES.loopBound(to - from);
+        for (; i < bound; i += SPECIES.length()) {
+            gray(IntVector.fromArray(SPECIES, data, i)).mul(0x010101).intoArray(data, i);
+        }
+        for (; i < to; i++) {
+            data[i] = gray(data[i]) * 0x010101;
+        }
+    }
+
+    private static void and(int[] data, int from, int to, int mask) {
+        int i = from;
+        int bound = from + SPECIES.loopBound(to - from);
+        for (; i < bound; i += SPECIES.length()) {
+            IntVector.fromArray(SPECIES, data, i).and(mask).intoArray(data, i);
+        }
+        for (; i < to; i++) {
+            data[i] &= mask;
+        }
+    }
+
+    // Per channel (c + t) / 2 == (c >> 1) + (t >> 1) + (c & t & 1), which never carries into
+    // the next channel, so all three channels are averaged in one packed add.
+    private static void tint(int[] data, int from, int to, int tintRgb) {
+        int tintHalf = (tintRgb >>> 1) & 0x7F7F7F;
+        int tintLow = tintRgb & 0x010101;
+        int i = from;
+        int bound = from + SPECIES.loopBound(to - from);
+        for (; i < bound; i += SPECIES.length()) {
+            IntVector v = IntVector.fromArray(SPECIES, data, i);
+            v.lanewise(VectorOperators.LSHR, 1).and(0x7F7F7F).add(tintHalf)
+                    .add(v.and(tintLow))
+                    .intoArray(data, i);
+        }
+        for (; i < to; i++) {
+            int v = data[i];
+            data[i] = ((v >>> 1) & 0x7F7F7F) + tintHalf + (v & tintLow);
+        }
+    }
+
+    private static void colorShiftRight(int[] data, int from, int to) {
+        int i = from;
+        int bound = from + SPECIES.loopBound(to - from);
+        for (; i < bound; i += SPECIES.length()) {
+            IntVector v = IntVector.fromArray(SPECIES, data, i);
+            v.and(0xFF).lanewise(VectorOperators.LSHL, 16)
+                    .or(v.lanewise(VectorOperators.LSHR, 8).and(0xFFFF))
+                    .intoArray(data, i);
+        }
+        for (; i < to; i++) {
+            int v = data[i];
+            data[i] = ((v & 0xFF) << 16) | ((v >>> 8) & 0xFFFF);
+        }
+    }
+
+    private static void negative(int[] data, int from, int to) {
+        int i = from;
+        int bound = from + SPECIES.loopBound(to - from);
+        for (; i < bound; i += SPECIES.length()) {
+            IntVector.fromArray(SPECIES, data, i).not().and(0xFFFFFF).intoArray(data, i);
+        }
+        for (; i < to; i++) {
+            data[i] = ~data[i] & 0xFFFFFF;
+        }
+    }
+}